@@ -91,6 +91,14 @@ public class Feature2DHandler {
         remakeRTree();
     }
 
+    /**
+     * @return all features for this chromosome pair (empty if there are none)
+     */
+    public List<Feature2D> getFeatures(int chrIdx1, int chrIdx2) {
+        List<Feature2D> features = loopList.get(Feature2DList.getKey(chrIdx1, chrIdx2));
+        return features == null ? new ArrayList<>() : features;
+    }
+
     public List<Feature2D> getContainedFeatures(int chrIdx1, int chrIdx2, net.sf.jsi.Rectangle currentWindow) {
         final List<Feature2D> foundFeatures = new ArrayList<>();
         final String key = Feature2DList.getKey(chrIdx1, chrIdx2);
@@ -30,9 +30,13 @@ import juicebox.HiCGlobals;
 import juicebox.tools.clt.juicer.CompareLists;
 import juicebox.tools.utils.juicer.hiccups.HiCCUPSUtils;
 
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 /**
  * Created by muhammadsaadshamim on 10/27/15.
@@ -144,25 +148,9 @@ public class Feature2DTools {
 
         secondFeatureList.processLists((chr, secondFeature2DList) -> {
             if (firstFeatureList.containsKey(chr)) {
-                List<Feature2D> base1FeatureList = firstFeatureList.getFeatureList(chr);
-                for (Feature2D f2 : secondFeature2DList) {
-                    double lowestDistance = -1;
-                    //Feature2D overlap = null;
-                    for (Feature2D f1 : base1FeatureList) {
-                        int dx = (int) (f1.getStart1() - f2.getStart1());
-                        int dy = (int) (f1.getStart2() - f2.getStart2());
-                        double d = HiCCUPSUtils.hypotenuse(dx, dy);
-                        if (d < lowestDistance || lowestDistance == -1) {
-                            //overlap = f1;
-                            lowestDistance = d;
-                        }
-                    }
-                    if (lowestDistance != -1) {
-                        double f = lowestDistance / (f2.getStart2() - f2.getStart1());
-                        if (lowestDistance <= radius && f <= fraction) {
-                            centroids.addByKey(chr, f2);
-                        }
-                    }
+                for (Feature2D f2 : getReproducibleCentroids(firstFeatureList.getFeatureList(chr), secondFeature2DList,
+                        radius, fraction)) {
+                    centroids.addByKey(chr, f2);
                 }
             }
         });
@@ -170,8 +158,63 @@ public class Feature2DTools {
     }
 
     /**
-     * @return peaks within radius of diagonal
+     * Same as above, with each chromosome handled as a separate task on the executor
      */
+    public static Feature2DList extractReproducibleCentroids(final Feature2DList firstFeatureList, Feature2DList secondFeatureList,
+                                                             final int radius, final double fraction, ExecutorService executor) {
+
+        final List<String> keys = new ArrayList<>();
+        final List<Future<List<Feature2D>>> results = new ArrayList<>();
+
+        secondFeatureList.processLists((chr, secondFeature2DList) -> {
+            if (firstFeatureList.containsKey(chr)) {
+                final List<Feature2D> base1FeatureList = firstFeatureList.getFeatureList(chr);
+                keys.add(chr);
+                results.add(executor.submit(() -> getReproducibleCentroids(base1FeatureList, secondFeature2DList,
+                        radius, fraction)));
+            }
+        });
+
+        // added in the same order as the serial version
+        final Feature2DList centroids = new Feature2DList();
+        for (int k = 0; k < keys.size(); k++) {
+            try {
+                for (Feature2D f2 : results.get(k).get()) {
+                    centroids.addByKey(keys.get(k), f2);
+                }
+            } catch (InterruptedException | ExecutionException e) {
+                System.err.println("Unable to compare loops for " + keys.get(k) + " " + e.getLocalizedMessage());
+                System.exit(61);
+            }
+        }
+        return centroids;
+    }
+
+    private static List<Feature2D> getReproducibleCentroids(List<Feature2D> base1FeatureList, List<Feature2D> secondFeature2DList,
+                                                            int radius, double fraction) {
+        List<Feature2D> centroids = new ArrayList<>();
+        for (Feature2D f2 : secondFeature2DList) {
+            double lowestDistance = -1;
+            //Feature2D overlap = null;
+            for (Feature2D f1 : base1FeatureList) {
+                int dx = (int) (f1.getStart1() - f2.getStart1());
+                int dy = (int) (f1.getStart2() - f2.getStart2());
+                double d = HiCCUPSUtils.hypotenuse(dx, dy);
+                if (d < lowestDistance || lowestDistance == -1) {
+                    //overlap = f1;
+                    lowestDistance = d;
+                }
+            }
+            if (lowestDistance != -1) {
+                double f = lowestDistance / (f2.getStart2() - f2.getStart1());
+                if (lowestDistance <= radius && f <= fraction) {
+                    centroids.add(f2);
+                }
+            }
+        }
+        return centroids;
+    }
+
     public static Feature2DList getPeaksNearDiagonal(Feature2DList feature2DList, final int radius) {
         final Feature2DList peaks = new Feature2DList();
         feature2DList.processLists((chr, feature2DList1) -> {
@@ -64,6 +64,21 @@ public class CommandLineParserForJuicer extends CommandLineParser {
     private final Option thresholdOption = addStringOption('t', "postprocessing-thresholds");
     private final Option cpuVersionHiCCUPSOption = addBooleanOption('j', "cpu");
     private final Option restrictSearchRegionsOption = addBooleanOption('y', "restrict");
+    private final Option maxDistanceOption = addIntegerOption("max-distance");
+    private final Option backendOption = addStringOption("backend");
+    private final Option approximateOption = addDoubleOption("approximate");
+    private final Option spillPixelsOption = addBooleanOption("spill-pixels");
+    private final Option sweepOption = addStringOption("sweep");
+    private final Option regionTimingsOption = addBooleanOption("region-timings");
+    private final Option cacheRegionsOption = addBooleanOption("cache-regions");
+    private final Option cacheMemoryOption = addIntegerOption("cache-memory");
+    private final Option ioThreadsOption = addIntegerOption("io-threads");
+    private final Option prefetchOption = addIntegerOption("prefetch");
+    private final Option shardOption = addStringOption("shard");
+    private final Option shardStageOption = addStringOption("shard-stage");
+    private final Option targetedOption = addBooleanOption("targeted");
+    private final Option tuneMatrixSizeOption = addBooleanOption("tune-matrix-size");
+    private final Option calibrateMatrixSizeOption = addBooleanOption("calibrate-matrix-size");
 
     private final Option relativeLocationOption = addStringOption('l', "location-type");
     private final Option multipleAttributesOption = addStringOption('a', "attributes");
@@ -191,4 +206,64 @@ public class CommandLineParserForJuicer extends CommandLineParser {
     public boolean restrictSearchRegionsOptions() {
         return optionToBoolean(restrictSearchRegionsOption);
     }
-}
\ No newline at end of file
+
+    public boolean getCacheRegionsOption() {
+        return optionToBoolean(cacheRegionsOption);
+    }
+
+    public int getMaxDistanceOption() {
+        return optionToInt(maxDistanceOption);
+    }
+
+    public String getBackendOption() {
+        return optionToString(backendOption);
+    }
+
+    public double getApproximateOption() {
+        return optionToDouble(approximateOption);
+    }
+
+    public boolean getSpillPixelsOption() {
+        return optionToBoolean(spillPixelsOption);
+    }
+
+    public String getSweepOption() {
+        return optionToString(sweepOption);
+    }
+
+    public boolean getRegionTimingsOption() {
+        return optionToBoolean(regionTimingsOption);
+    }
+
+    public int getCacheMemoryOption() {
+        return optionToInt(cacheMemoryOption);
+    }
+
+    public int getIOThreadsOption() {
+        return optionToInt(ioThreadsOption);
+    }
+
+    public int getPrefetchOption() {
+        return optionToInt(prefetchOption);
+    }
+
+    public String getShardOption() {
+        return optionToString(shardOption);
+    }
+
+    public String getShardStageOption() {
+        return optionToString(shardStageOption);
+    }
+
+    public boolean getTargetedOption() {
+        return optionToBoolean(targetedOption);
+    }
+
+    public boolean getTuneMatrixSizeOption() {
+        return optionToBoolean(tuneMatrixSizeOption);
+    }
+
+    public boolean getCalibrateMatrixSizeOption() {
+        return optionToBoolean(calibrateMatrixSizeOption);
+    }
+}
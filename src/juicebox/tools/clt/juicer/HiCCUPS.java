@@ -24,8 +24,6 @@
 
 package juicebox.tools.clt.juicer;
 
-import com.google.common.primitives.Doubles;
-import com.google.common.primitives.Floats;
 import javastraw.feature2D.Feature2D;
 import javastraw.feature2D.Feature2DList;
 import javastraw.reader.Dataset;
@@ -38,7 +36,6 @@ import javastraw.reader.type.NormalizationType;
 import javastraw.tools.HiCFileTools;
 import juicebox.HiCGlobals;
 import juicebox.data.Feature2DHandler;
-import juicebox.data.Feature2DTools;
 import juicebox.tools.clt.CommandLineParserForJuicer;
 import juicebox.tools.clt.JuicerCLT;
 import juicebox.tools.utils.common.ArrayTools;
@@ -50,13 +47,18 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.math.RoundingMode;
 import java.text.DecimalFormat;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * HiC Computational Unbiased Peak Search
@@ -140,6 +142,55 @@ import java.util.concurrent.atomic.AtomicInteger;
  * If a resolution (5kB, 10kB, or 25kB) is not available, that centroid distance will be ignored during the merger
  * step (but a distance value should still be passed as a parameter for that resolution e.g. 0)
  * <p/>
+ * --restrict Only search for loops within a band along the diagonal (8MB wide unless --max-distance <int> gives the
+ * width in bp; giving it also turns --restrict on). The CPU version is always restricted. Regions follow the
+ * diagonal, with the last region of each row cut down to the band, and pixels outside the band are not evaluated.
+ * <p/>
+ * --backend <name> Compute backend running the kernel on each region (see HiCCUPSComputeBackends): gpu (default)
+ * or java, which needs no GPU or JCuda native libraries. -j/--cpu is the same as --backend java --restrict.
+ * <p/>
+ * --cache-regions Keep the per-region results of the first pass (compressed, spilling to the output directory beyond
+ * --cache-memory <int> megabytes) so that the second pass only applies the thresholds instead of re-reading the map.
+ * <p/>
+ * --io-threads <int> Number of threads reading regions from the .hic file while the kernel runs (defaults to the
+ * number of CPU threads). --prefetch <int> caps how many read regions can be waiting for the kernel at once.
+ * <p/>
+ * --shard-stage <stage> Run HiCCUPS in separate stages so the regions can be spread across machines. All stages must
+ * use the same parameters and output directory (shard files are exchanged through it, and files written with a
+ * different resolution, peak width, window, fdr, norm, search band, matrix size or chromosome list are rejected):
+ * > histograms: 1st pass over shard --shard <index/count> of the regions, saving its histograms
+ * > thresholds: sum the histograms of all shards and calculate the thresholds
+ * > peaks: 2nd pass over shard --shard <index/count> of the regions, saving its enriched pixels
+ * > postprocess: combine the enriched pixels of all shards and post process them as usual
+ * <p/>
+ * --targeted Only evaluate the loops of the specified loop list: regions are created just where those loops are
+ * (using a smaller matrix size of 128 unless -m is given) and only the requested list is saved. There is no genome
+ * wide first pass, so peaks and fdr values are only reported if the thresholds of a sharded run are present in the
+ * output directory.
+ * <p/>
+ * --tune-matrix-size Pick the matrix size per resolution (unless -m is given) from the CPU cache sizes, the free heap
+ * and the share of each tile lost to its margins. --calibrate-matrix-size times the CPU version on synthetic tiles
+ * of each candidate size instead. Not used for sharded or targeted runs.
+ * <p/>
+ * --approximate <fraction> Only run the 1st pass over a stratified random sample (per chromosome and distance band)
+ * of this fraction of the regions, weighting the histograms of each sampled region by how many regions it stands for,
+ * and go on to the 2nd pass with the resulting thresholds. A rough 95% bound on the threshold error is printed.
+ * Meant for quick QC runs; not used for sharded or targeted runs.
+ * <p/>
+ * --spill-pixels Append the enriched pixels to per chromosome files in the output directory as regions finish,
+ * instead of keeping them all in memory until the end of the run; the enriched pixel list is then exported and post
+ * processed one chromosome at a time. Not used for sharded or targeted runs.
+ * <p/>
+ * --sweep <peak:window[:fdr],...> Evaluate a grid of peak width and window pairs (e.g. 1:3,2:5,2:6:0.05) in place of
+ * the -p/-w values of each resolution. Every region is read once and run through the kernel for each pair, with
+ * separate histograms, thresholds and enriched pixels per pair; the results of a pair, post processed as usual, go
+ * to the sweep_p<peak>_w<window>[_f<fdr>] subdirectory of the output directory. The fdr of a pair defaults to the
+ * one of the resolution. Not used for sharded or targeted runs, and regions are not cached.
+ * <p/>
+ * Regions are processed most expensive first, ranked by the number of pixels evaluated (ties broken by their
+ * contacts). With --region-timings, the kernel time of each region is saved to region_timings_<res>.txt in the output
+ * directory, and a later run into the same directory with --region-timings uses those timings to order its regions.
+ * <p/>
  * ----------------
  * HiCCUPS Examples
  * ----------------
@@ -164,9 +215,17 @@ public class HiCCUPS extends JuicerCLT {
             "The GPU version of HiCCUPS is the official version and has been tested extensively.\n" +
             "The CPU version only searches for loops within 8MB (by default) of the diagonal and is still experimental.";
     private static final int totalMargin = 2 * regionMargin;
+    public static final int DEFAULT_MAX_LOOP_DISTANCE = 8000000;
     public static final int w1 = 40;      // TODO dimension should be variably set
     private static final int w2 = 10000;   // TODO dimension should be variably set
     private static final boolean dataShouldBePostProcessed = true;
+    // pixels a worker collects before appending them to the spill files
+    private static final int PIXEL_SPILL_CHUNK_SIZE = 1 << 15;
+    public static final int TARGETED_MATRIX_SIZE = 128;
+    private static final String SHARD_STAGE_HISTOGRAMS = "histograms";
+    private static final String SHARD_STAGE_THRESHOLDS = "thresholds";
+    private static final String SHARD_STAGE_PEAKS = "peaks";
+    private static final String SHARD_STAGE_POSTPROCESS = "postprocess";
     public static double fdrsum = 0.02;
     public static double oeThreshold1 = 1.5;
     public static double oeThreshold2 = 1.75;
@@ -199,10 +258,28 @@ public class HiCCUPS extends JuicerCLT {
     private List<HiCCUPSConfiguration> configurations;
     private Dataset ds;
     private boolean useCPUVersionHiCCUPS = false, restrictSearchRegions = false;
+    private String computeBackend = HiCCUPSComputeBackends.GPU;
+    private ForkJoinPool rowPool = null;
+    private int maxLoopDistance = DEFAULT_MAX_LOOP_DISTANCE;
+    private boolean cacheRegionResults = false;
+    private long regionCacheMemoryBudget = Runtime.getRuntime().maxMemory() / 4;
+    private int numIOThreads = 0, prefetchDepth = 0;
+    private String shardStage = null;
+    private int shardIndex = 0, numShards = 1;
+    private boolean targeted = false;
+    private boolean tuneMatrixSize = false, calibrateMatrixSize = false;
+    private double sampleFraction = 1;
+    private boolean spillEnrichedPixels = false;
+    private HiCCUPSParameterSweep parameterSweep = null;
+    private boolean useRegionTimings = false;
+    private ExecutorService sharedExecutor = null;
 
     public HiCCUPS() {
         super("hiccups [-m matrixSize] [-k normalization (NONE/VC/VC_SQRT/KR)] " +
-                "[-c chromosome(s)] [-r resolution(s)] [--restrict] " +
+                "[-c chromosome(s)] [-r resolution(s)] [--restrict] [--max-distance bp] [--backend name] [--cache-regions] [--cache-memory megabytes] " +
+                "[--io-threads threads] [--prefetch regions] [--shard-stage stage] [--shard index/count] [--targeted] " +
+                "[--tune-matrix-size] [--calibrate-matrix-size] [--approximate fraction] [--spill-pixels] " +
+                "[--sweep peak:window[:fdr],...] [--region-timings] " +
                 "[-f fdr] [-p peak width] [-i window] [-t thresholds] [-d centroid distances] " +
                 "<hicFile> <outputDirectory> [specified_loop_list]");
     }
@@ -233,18 +310,104 @@ public class HiCCUPS extends JuicerCLT {
         determineValidMatrixSize(juicerParser);
         determineValidConfigurations(juicerParser, ds.getBpZooms());
 
-        if (juicerParser.restrictSearchRegionsOptions()) {
+        if (juicerParser.getMaxDistanceOption() > 0) {
+            maxLoopDistance = juicerParser.getMaxDistanceOption();
+        }
+
+        if (juicerParser.restrictSearchRegionsOptions() || juicerParser.getMaxDistanceOption() > 0) {
             restrictSearchRegions = true;
-            System.out.println("WARNING - You are restricting the regions the HiCCUPS will explore.");
+            System.out.println("WARNING - You are restricting the regions the HiCCUPS will explore " +
+                    "(within " + maxLoopDistance + " bp of the diagonal).");
         }
 
         if (juicerParser.getCPUVersionOfHiCCUPSOptions()) {
             useCPUVersionHiCCUPS = true;
+            computeBackend = HiCCUPSComputeBackends.JAVA;
             restrictSearchRegions = true;
             System.out.println(CPU_VERSION_WARNING);
         }
 
+        String backendOption = juicerParser.getBackendOption();
+        if (backendOption != null) {
+            if (!HiCCUPSComputeBackends.isRegistered(backendOption)) {
+                System.err.println("Unknown backend " + backendOption + "; available: " + HiCCUPSComputeBackends.getNames());
+                printUsageAndExit();
+            }
+            computeBackend = backendOption;
+            useCPUVersionHiCCUPS = !HiCCUPSComputeBackends.GPU.equalsIgnoreCase(backendOption);
+        }
+
+        if (juicerParser.getCacheRegionsOption()) {
+            cacheRegionResults = true;
+            int cacheMemoryMB = juicerParser.getCacheMemoryOption();
+            if (cacheMemoryMB > 0) {
+                regionCacheMemoryBudget = cacheMemoryMB * 1024L * 1024L;
+            }
+        }
+
         updateNumberOfCPUThreads(juicerParser, 1);
+        numIOThreads = getAppropriateNumberOfThreads(juicerParser.getIOThreadsOption(), numCPUThreads);
+        prefetchDepth = juicerParser.getPrefetchOption();
+
+        determineShard(juicerParser);
+
+        if (juicerParser.getTargetedOption()) {
+            if (!listGiven || shardStage != null) {
+                System.err.println("Targeted mode needs a loop list and cannot be sharded");
+                printUsageAndExit();
+            }
+            enableTargetedMode(juicerParser.getMatrixSizeOption());
+        }
+
+        if (juicerParser.getTuneMatrixSizeOption() || juicerParser.getCalibrateMatrixSizeOption()) {
+            if (juicerParser.getMatrixSizeOption() > 0 || shardStage != null || targeted) {
+                System.out.println("Not tuning the matrix size; using " + matrixSize);
+            } else {
+                tuneMatrixSize = true;
+                calibrateMatrixSize = juicerParser.getCalibrateMatrixSizeOption();
+            }
+        }
+
+        double approximateOption = juicerParser.getApproximateOption();
+        if (approximateOption > -1) {
+            if (approximateOption <= 0 || approximateOption > 1) {
+                System.err.println("The approximate fraction must be in (0, 1]");
+                printUsageAndExit();
+            }
+            if (shardStage != null || targeted) {
+                System.out.println("Not approximating; sharded and targeted runs need exact histograms");
+            } else {
+                sampleFraction = approximateOption;
+            }
+        }
+
+        if (juicerParser.getSpillPixelsOption()) {
+            if (shardStage != null || targeted) {
+                System.out.println("Not spilling enriched pixels; sharded and targeted runs already save them per shard");
+            } else {
+                spillEnrichedPixels = true;
+            }
+        }
+
+        useRegionTimings = juicerParser.getRegionTimingsOption();
+
+        String sweepOption = juicerParser.getSweepOption();
+        if (sweepOption != null) {
+            HiCCUPSParameterSweep sweep = HiCCUPSParameterSweep.parse(sweepOption);
+            if (sweep == null) {
+                System.err.println("Invalid sweep " + sweepOption + "; expected peak:window[:fdr] pairs with window > peak");
+                printUsageAndExit();
+            }
+            if (shardStage != null || targeted) {
+                System.out.println("Not sweeping; sharded and targeted runs use a single peak width and window");
+            } else {
+                parameterSweep = sweep;
+                if (cacheRegionResults) {
+                    System.out.println("Sweeping evaluates each region for every pair; not caching regions");
+                    cacheRegionResults = false;
+                }
+            }
+        }
     }
 
     /**
@@ -258,12 +421,13 @@ public class HiCCUPS extends JuicerCLT {
      * @param providedCommonChromosomeHandler
      * @param configurations
      * @param thresholds
+     * @param targeted        only evaluate the loops of the feature list
      */
     public void initializeDirectly(Dataset dataset, String outputDirectoryPath,
                                    String featureListPath, NormalizationType preferredNorm, int matrixSize,
                                    ChromosomeHandler providedCommonChromosomeHandler,
                                    List<HiCCUPSConfiguration> configurations, double[] thresholds,
-                                   boolean usingCPUVersion, boolean restrictSearchRegions) {
+                                   boolean usingCPUVersion, boolean restrictSearchRegions, boolean targeted) {
         this.ds = dataset;
         outputDirectory = HiCFileTools.createValidDirectory(outputDirectoryPath);
 
@@ -291,12 +455,36 @@ public class HiCCUPS extends JuicerCLT {
         this.restrictSearchRegions = restrictSearchRegions;
         if (usingCPUVersion) {
             useCPUVersionHiCCUPS = true;
+            computeBackend = HiCCUPSComputeBackends.JAVA;
             this.restrictSearchRegions = true;
         }
+
+        if (targeted && listGiven) {
+            enableTargetedMode(matrixSize);
+        }
+    }
+
+    /**
+     * Run the workers (and post processing) on the given executor instead of a pool of this tool's own,
+     * e.g. so that hiccups diff can run both maps at once on a single thread budget
+     */
+    public void setExecutor(ExecutorService executor) {
+        sharedExecutor = executor;
     }
 
     @Override
     public void run() {
+        ExecutorService executor = sharedExecutor != null ? sharedExecutor : Executors.newFixedThreadPool(numCPUThreads);
+        try {
+            run(executor);
+        } finally {
+            if (executor != sharedExecutor) {
+                executor.shutdown();
+            }
+        }
+    }
+
+    private void run(ExecutorService executor) {
 
         try {
             final ExpectedValueFunction df = ds.getExpectedValues(new HiCZoom(HiCZoom.HiCUnit.BP, 2500000),
@@ -322,200 +510,661 @@ public class HiCCUPS extends JuicerCLT {
             commonChromosomesHandler = HiCFileTools.stringToChromosomes(givenChromosomes, commonChromosomesHandler);
         }
 
-        Map<Integer, Feature2DList> loopLists = new HashMap<>();
-        Map<Integer, Feature2DList> givenLoopLists = new HashMap<>();
-
-        File outputMergedFile = new File(outputDirectory, HiCCUPSUtils.getMergedLoopsFileName());
-        File outputMergedGivenFile = new File(outputDirectory, HiCCUPSUtils.getMergedRequestedLoopsFileName());
-
         Feature2DHandler inputListFeature2DHandler = new Feature2DHandler();
         if (listGiven) {
             inputListFeature2DHandler.setLoopList(featureListPath, commonChromosomesHandler);
         }
 
-        for (HiCCUPSConfiguration conf : configurations) {
-            System.out.println("Running HiCCUPS for resolution " + conf.getResolution());
-            Feature2DList enrichedPixels = runHiccupsProcessing(ds, conf, commonChromosomesHandler, inputListFeature2DHandler, givenLoopLists);
-            if (enrichedPixels != null) {
-                loopLists.put(conf.getResolution(), enrichedPixels);
+        if (SHARD_STAGE_THRESHOLDS.equals(shardStage)) {
+            mergeShardHistograms(commonChromosomesHandler);
+            System.out.println("HiCCUPS thresholds complete");
+            return;
+        } else if (SHARD_STAGE_POSTPROCESS.equals(shardStage)) {
+            Map<Integer, EnrichedPixelTable> loopLists = new HashMap<>();
+            Map<Integer, EnrichedPixelTable> givenLoopLists = new HashMap<>();
+            loadShardPixels(commonChromosomesHandler, loopLists, givenLoopLists);
+            postProcessResults(loopLists, new HashMap<>(), givenLoopLists, configurations, outputDirectory, executor);
+        } else {
+            List<ResolutionRun> runs = runHiccupsProcessing(ds, commonChromosomesHandler, inputListFeature2DHandler,
+                    executor);
+            if (targeted) {
+                System.out.println("HiCCUPS targeted evaluation complete");
+                return;
+            } else if (shardStage != null) {
+                System.out.println("HiCCUPS shard " + shardIndex + " of " + numShards + " complete");
+                return;
+            }
+
+            // each parameter set of a sweep is post processed across resolutions on its own
+            int numParameterSets = parameterSweep != null ? parameterSweep.size() : 1;
+            for (int k = 0; k < numParameterSets; k++) {
+                Map<Integer, EnrichedPixelTable> loopLists = new HashMap<>();
+                Map<Integer, EnrichedPixelSpill> spilledLoopLists = new HashMap<>();
+                Map<Integer, EnrichedPixelTable> givenLoopLists = new HashMap<>();
+                List<HiCCUPSConfiguration> parameterSetConfigurations = new ArrayList<>();
+                for (ResolutionRun run : runs) {
+                    ResolutionRun.ParameterSet set = run.parameterSets.get(k);
+                    parameterSetConfigurations.add(set.conf);
+                    if (set.enrichedPixels != null) {
+                        loopLists.put(set.conf.getResolution(), set.enrichedPixels);
+                    }
+                    if (set.pixelSpill != null) {
+                        spilledLoopLists.put(set.conf.getResolution(), set.pixelSpill);
+                    }
+                    if (set.requestedPixels != null) {
+                        givenLoopLists.put(set.conf.getResolution(), set.requestedPixels);
+                    }
+                }
+                postProcessResults(loopLists, spilledLoopLists, givenLoopLists, parameterSetConfigurations,
+                        getParameterSetDirectory(k), executor);
             }
         }
+        System.out.println("HiCCUPS complete");
+        // else the thresholds and raw pixels were already saved when hiccups was run
+    }
+
+    private void postProcessResults(Map<Integer, EnrichedPixelTable> loopLists,
+                                    Map<Integer, EnrichedPixelSpill> spilledLoopLists,
+                                    Map<Integer, EnrichedPixelTable> givenLoopLists,
+                                    List<HiCCUPSConfiguration> configurations, File directory,
+                                    ExecutorService executor) {
+        File outputMergedFile = new File(directory, HiCCUPSUtils.getMergedLoopsFileName());
+        File outputMergedGivenFile = new File(directory, HiCCUPSUtils.getMergedRequestedLoopsFileName());
 
         if (dataShouldBePostProcessed) {
-            HiCCUPSUtils.postProcess(loopLists, ds, commonChromosomesHandler,
-                    configurations, norm, outputDirectory, false, outputMergedFile);
+            HiCCUPSUtils.postProcess(loopLists, spilledLoopLists, ds,
+                    configurations, norm, directory, false, outputMergedFile, executor);
             if (listGiven) {
-                HiCCUPSUtils.postProcess(givenLoopLists, ds, commonChromosomesHandler,
-                        configurations, norm, outputDirectory, true, outputMergedGivenFile);
+                HiCCUPSUtils.postProcess(givenLoopLists, null, ds,
+                        configurations, norm, directory, true, outputMergedGivenFile, executor);
+            }
+        }
+        for (EnrichedPixelSpill spill : spilledLoopLists.values()) {
+            try {
+                spill.close();
+            } catch (IOException e) {
+                System.err.println("Unable to clean up spilled HiCCUPS pixels " + e.getLocalizedMessage());
             }
         }
-        System.out.println("HiCCUPS complete");
-        // else the thresholds and raw pixels were already saved when hiccups was run
+    }
+
+    /**
+     * @return directory the results of the given parameter set are saved to; the output directory itself unless sweeping
+     */
+    private File getParameterSetDirectory(int index) {
+        if (parameterSweep == null) return outputDirectory;
+        return HiCFileTools.createValidDirectory(new File(outputDirectory, parameterSweep.getLabel(index)).getPath());
     }
 
     /**
      * Actual run of the HiCCUPS algorithm
+     * <p/>
+     * All resolutions share one pool of numCPUThreads workers. Each resolution is split into two runs (1st to build
+     * histograms, 2nd to identify loops); the 2nd run of a resolution is queued as soon as its own thresholds are
+     * known, so the tail of one resolution overlaps with the regions of the next.
      *
      * @param ds                dataset from hic file
-     * @param conf              configuration of hiccups inputs
      * @param chromosomeHandler list of chromosomes to run hiccups on
-     * @param givenLoopLists
-     * @return list of enriched pixels
+     * @param executor          runs the workers of all resolutions
+     * @return finished runs, holding the enriched pixels found for each resolution and parameter set
      */
-    private Feature2DList runHiccupsProcessing(Dataset ds, final HiCCUPSConfiguration conf, ChromosomeHandler chromosomeHandler,
-                                               final Feature2DHandler inputListFeature2DHandler, Map<Integer, Feature2DList> givenLoopLists) {
+    private List<ResolutionRun> runHiccupsProcessing(Dataset ds, ChromosomeHandler chromosomeHandler,
+                                                     final Feature2DHandler inputListFeature2DHandler,
+                                                     ExecutorService executor) {
 
-        long begin_time = System.currentTimeMillis();
+        List<ResolutionRun> runs = new ArrayList<>();
+        for (HiCCUPSConfiguration conf : configurations) {
+            System.out.println("Running HiCCUPS for resolution " + conf.getResolution());
+            HiCZoom zoom = ds.getZoomForBPResolution(conf.getResolution());
+            if (zoom == null) {
+                System.err.println("Data not available at " + conf.getResolution() + " resolution");
+                continue;
+            }
+            runs.add(new ResolutionRun(ds, conf, zoom, chromosomeHandler, inputListFeature2DHandler));
+        }
 
-        HiCZoom zoom = ds.getZoomForBPResolution(conf.getResolution());
-        if (zoom == null) {
-            System.err.println("Data not available at " + conf.getResolution() + " resolution");
-            return null;
+        // with fewer regions than threads, one region per worker would leave threads idle, so the backends
+        // split the rows of each region across a pool instead
+        int numRegions = 0;
+        for (ResolutionRun run : runs) {
+            numRegions += run.regionHandler.getSize();
+        }
+        if (numRegions < numCPUThreads && numCPUThreads > 1) {
+            System.out.println("Only " + numRegions + " regions for " + numCPUThreads +
+                    " threads; splitting each region across threads");
+            rowPool = new ForkJoinPool(numCPUThreads);
         }
 
-        // open the print writer early so the file I/O capability is verified before running hiccups
-        PrintWriter outputFDR = HiCFileTools.openWriter(
-                new File(outputDirectory, HiCCUPSUtils.getFDRThresholdsFilename(conf.getResolution())));
+        CountDownLatch runsLeft = new CountDownLatch(runs.size());
+        for (ResolutionRun run : runs) {
+            if (SHARD_STAGE_PEAKS.equals(shardStage) || targeted) {
+                run.readThresholds(!targeted);
+                run.startRun(1, executor, runsLeft);
+            } else {
+                run.startRun(0, executor, runsLeft);
+            }
+        }
 
-        final long[][] histBL = new long[w1][w2];
-        final long[][] histDonut = new long[w1][w2];
-        final long[][] histH = new long[w1][w2];
-        final long[][] histV = new long[w1][w2];
-        final float[][] fdrLogBL = new float[w1][w2];
-        final float[][] fdrLogDonut = new float[w1][w2];
-        final float[][] fdrLogH = new float[w1][w2];
-        final float[][] fdrLogV = new float[w1][w2];
-        final float[] thresholdBL = ArrayTools.newValueInitializedFloatArray(w1, (float) w2);
-        final float[] thresholdDonut = ArrayTools.newValueInitializedFloatArray(w1, (float) w2);
-        final float[] thresholdH = ArrayTools.newValueInitializedFloatArray(w1, (float) w2);
-        final float[] thresholdV = ArrayTools.newValueInitializedFloatArray(w1, (float) w2);
+        // Wait until all resolutions finish
+        try {
+            runsLeft.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
 
-        // to hold all enriched pixels found in second run
-        final Feature2DList globalList = new Feature2DList();
-        final Feature2DList requestedList = new Feature2DList();
+        if (rowPool != null) {
+            rowPool.shutdown();
+            rowPool = null;
+        }
 
+        return runs;
+    }
 
-        // two runs, 1st to build histograms, 2nd to identify loops
-        final HiCCUPSRegionHandler regionHandler = new HiCCUPSRegionHandler(ds, chromosomeHandler, zoom, norm, conf, regionWidth,
-                regionMargin, restrictSearchRegions);
+    /**
+     * Regions of a single resolution, read once per run and evaluated for each of its parameter sets (just the
+     * configuration of the resolution unless sweeping); workers only ever touch the state of the resolution whose
+     * regions they are processing
+     */
+    private class ResolutionRun {
+
+        private final HiCCUPSConfiguration conf;
+        private final HiCZoom zoom;
+        private final Feature2DHandler inputListFeature2DHandler;
+        private final List<ParameterSet> parameterSets = new ArrayList<>();
+        private final HiCCUPSRegionHandler regionHandler;
+        private final HiCCUPSRegionCache regionCache;
+        private final HiCCUPSRegionScheduler scheduler;
+        private final HiCCUPSRegionSample regionSample;
+        private final int runMatrixSize;
+        private final String shardParameters;
+        private final long begin_time = System.currentTimeMillis();
+
+        ResolutionRun(Dataset ds, HiCCUPSConfiguration conf, HiCZoom zoom, ChromosomeHandler chromosomeHandler,
+                      Feature2DHandler inputListFeature2DHandler) {
+            this.conf = conf;
+            this.zoom = zoom;
+            this.inputListFeature2DHandler = inputListFeature2DHandler;
+
+            if (parameterSweep == null) {
+                parameterSets.add(new ParameterSet(conf, outputDirectory));
+            } else {
+                for (int k = 0; k < parameterSweep.size(); k++) {
+                    parameterSets.add(new ParameterSet(parameterSweep.getConfiguration(conf, k), getParameterSetDirectory(k)));
+                }
+                System.out.println("Sweeping " + parameterSets.size() + " peak width and window pairs at " + conf.getResolution());
+            }
 
-        for (final int runNum : new int[]{0, 1}) {
+            runMatrixSize = tuneMatrixSize ? chooseMatrixSize(conf, chromosomeHandler) : matrixSize;
+            shardParameters = getShardParameters(conf, chromosomeHandler);
+            regionHandler = new HiCCUPSRegionHandler(ds, chromosomeHandler, zoom, norm, conf, runMatrixSize - totalMargin,
+                    regionMargin, restrictSearchRegions ? maxLoopDistance : 0,
+                    targeted ? inputListFeature2DHandler : null);
+            if (numShards > 1) {
+                regionHandler.restrictToShard(shardIndex, numShards);
+            }
+            int numRegions = regionHandler.getSize();
+            if (targeted) {
+                System.out.println("Evaluating " + numRegions + " regions around the requested loops");
+            } else {
+                // a region is skipped for every parameter set, so it has to be empty for the widest peak
+                int maxPeakWidth = 0;
+                for (ParameterSet set : parameterSets) {
+                    maxPeakWidth = Math.max(maxPeakWidth, set.conf.getPeakWidth());
+                }
+                int numEmptyRegions = regionHandler.removeEmptyRegions(ds, zoom, maxPeakWidth,
+                        listGiven ? inputListFeature2DHandler : null);
+                System.out.println("Skipping " + numEmptyRegions + " of " + numRegions + " regions with no data");
+            }
+
+            // most expensive regions first, using the timings of an earlier run in this directory if asked to
+            int maxDistance = restrictSearchRegions ? maxLoopDistance / conf.getResolution() : -1;
+            scheduler = new HiCCUPSRegionScheduler(regionHandler, zoom, maxDistance,
+                    useRegionTimings ? getTimingsFile() : null);
+
+            // approximate mode: the 1st run only covers a sample of the regions
+            regionSample = sampleFraction < 1 ? new HiCCUPSRegionSample(regionHandler, sampleFraction) : null;
+            if (regionSample != null) {
+                System.out.println("Sampling " + regionSample.getNumSampled() + " of " + regionHandler.getSize()
+                        + " regions for the thresholds");
+            }
+
+            // kernel outputs from the 1st run, so the 2nd run only needs to apply the thresholds
+            regionCache = cacheRegionResults ?
+                    new HiCCUPSRegionCache(regionHandler.getSize(), regionCacheMemoryBudget, outputDirectory) : null;
+        }
+
+        /**
+         * Queues numCPUThreads workers for this run on the shared executor; the last one to finish either
+         * queues the 2nd run or wraps up the resolution
+         */
+        void startRun(final int runNum, final ExecutorService executor, final CountDownLatch runsLeft) {
+
+            // regions are read ahead by separate I/O threads so the compute threads don't wait on the .hic file;
+            // reading only starts once a worker of this run is actually scheduled
+            int numReaders = numIOThreads > 0 ? numIOThreads : numCPUThreads;
+            int numPrefetchedRegions = prefetchDepth > 0 ? prefetchDepth : 2 * numCPUThreads;
+            final HiCCUPSRegionSample runSample = runNum == 0 ? regionSample : null;
+            final HiCCUPSRegionPrefetcher prefetcher = new HiCCUPSRegionPrefetcher(regionHandler, scheduler,
+                    runSample != null ? runSample::isSampled : null, runNum == 1 ? regionCache : null, runMatrixSize, norm, zoom, numReaders, numPrefetchedRegions);
+            final AtomicBoolean prefetcherStarted = new AtomicBoolean(false);
+
+            if (runNum == 1 && spillEnrichedPixels) {
+                for (ParameterSet set : parameterSets) {
+                    set.openPixelSpill();
+                }
+            }
 
             final AtomicInteger currentProgressStatus = new AtomicInteger(0);
-            final AtomicInteger indexOfHiCCUPSRegion = new AtomicInteger(0);
+            final AtomicInteger workersLeft = new AtomicInteger(numCPUThreads);
+            // first exception of any worker; the run's results are incomplete and must not be used
+            final AtomicReference<Throwable> failure = new AtomicReference<>();
 
-            ExecutorService executor = Executors.newFixedThreadPool(numCPUThreads);
             for (int l = 0; l < numCPUThreads; l++) {
+                final int threadIndex = l;
                 Runnable worker = new Runnable() {
                     @Override
                     public void run() {
-                        runCoreCodeForHiCCUPS(conf, indexOfHiCCUPSRegion, currentProgressStatus, regionHandler, matrixSize,
-                                thresholdBL, thresholdDonut, thresholdH, thresholdV, norm, zoom,
-                                histBL, histDonut, histH, histV, runNum, fdrLogBL, fdrLogDonut, fdrLogH, fdrLogV,
-                                inputListFeature2DHandler, requestedList, globalList);
+                        boolean completed = false;
+                        try {
+                            if (prefetcherStarted.compareAndSet(false, true)) {
+                                prefetcher.start();
+                            }
+                            for (ParameterSet set : parameterSets) {
+                                set.createShards(runNum, threadIndex);
+                            }
+                            runCoreCodeForHiCCUPS(parameterSets, threadIndex, prefetcher, scheduler, runSample,
+                                    currentProgressStatus,
+                                    runSample != null ? runSample.getNumSampled() : regionHandler.getSize(),
+                                    runMatrixSize, runNum, inputListFeature2DHandler, regionCache);
+                            completed = true;
+                        } catch (Throwable t) {
+                            failure.compareAndSet(null, t);
+                            throw t;
+                        } finally {
+                            // a worker killed by an unchecked exception no longer drains the prefetch queue
+                            if (!completed) {
+                                prefetcher.cancel();
+                            }
+                            if (workersLeft.decrementAndGet() == 0) {
+                                finishRun(runNum, executor, runsLeft, failure.get());
+                            }
+                        }
                     }
                 };
                 executor.execute(worker);
             }
-            executor.shutdown();
+        }
 
-            // Wait until all threads finish
-            while (!executor.isTerminated()) {
+        /**
+         * @param failure exception that stopped one of the workers, or null; the other workers only covered part of
+         *                the regions, so nothing is computed or exported from the run and the resolution fails
+         */
+        private void finishRun(int runNum, ExecutorService executor, CountDownLatch runsLeft, Throwable failure) {
+            boolean nextRunStarted = false;
+            try {
+                if (failure != null) {
+                    System.err.println("HiCCUPS run " + runNum + " failed for resolution " + conf.getResolution()
+                            + " " + failure.getLocalizedMessage());
+                    System.exit(64);
+                }
+                if (useRegionTimings) {
+                    scheduler.writeTimings(getTimingsFile());
+                }
+                if (runNum == 0) {
+                    for (ParameterSet set : parameterSets) {
+                        HiCCUPSHistograms histograms = HiCCUPSHistograms.merge(set.histogramShards, w1, w2);
+                        histograms.addEmptyPixels(regionHandler.getNumEmptyPixelsSkipped()
+                                * (regionSample != null ? HiCCUPSRegionSample.UNIT_WEIGHT : 1));
+                        if (SHARD_STAGE_HISTOGRAMS.equals(shardStage)) {
+                            writeShardFile(HiCCUPSShardFiles.getHistogramsFile(outputDirectory, conf.getResolution(),
+                                    shardIndex, numShards), histograms, null);
+                        } else {
+                            set.calculateThresholds(histograms);
+                        }
+                    }
+                    if (!SHARD_STAGE_HISTOGRAMS.equals(shardStage)) {
+                        startRun(1, executor, runsLeft);
+                        nextRunStarted = true;
+                    }
+                } else if (SHARD_STAGE_PEAKS.equals(shardStage)) {
+                    ParameterSet set = parameterSets.get(0);
+                    writeShardFile(HiCCUPSShardFiles.getPixelsFile(outputDirectory, conf.getResolution(),
+                            shardIndex, numShards, false), null, set.mergePixelShards(set.enrichedPixelShards));
+                    if (listGiven) {
+                        writeShardFile(HiCCUPSShardFiles.getPixelsFile(outputDirectory, conf.getResolution(),
+                                shardIndex, numShards, true), null, set.mergePixelShards(set.requestedPixelShards));
+                    }
+                } else {
+                    exportResults();
+                }
+            } finally {
+                if (!nextRunStarted) {
+                    runsLeft.countDown();
+                }
             }
+        }
 
-            if (runNum == 0) {
+        private File getTimingsFile() {
+            return HiCCUPSRegionScheduler.getTimingsFile(outputDirectory, conf.getResolution(), shardIndex, numShards);
+        }
 
+        /**
+         * Thresholds from the merge stage of a sharded run
+         *
+         * @param required exit if they are not available, otherwise keep the defaults (no peaks, no fdr values)
+         */
+        void readThresholds(boolean required) {
+            File file = HiCCUPSShardFiles.getThresholdsFile(outputDirectory, conf.getResolution());
+            if (!required && !file.exists()) {
+                parameterSets.get(0).thresholdsAvailable = false;
+                return;
+            }
+            try {
+                parameterSets.get(0).thresholds = HiCCUPSShardFiles.readThresholds(file, getRunParameters(conf));
+            } catch (IOException e) {
+                System.err.println("Unable to read HiCCUPS thresholds " + e.getLocalizedMessage());
+                System.exit(56);
+            }
+        }
+
+        private void writeShardFile(File file, HiCCUPSHistograms histograms, EnrichedPixelTable pixels) {
+            try {
+                if (histograms != null) {
+                    HiCCUPSShardFiles.writeHistograms(file, shardParameters, histograms);
+                } else {
+                    HiCCUPSShardFiles.writePixels(file, shardParameters, pixels);
+                }
+            } catch (IOException e) {
+                System.err.println("Unable to write HiCCUPS shard " + e.getLocalizedMessage());
+                System.exit(57);
+            }
+        }
+
+        private void exportResults() {
+            if (regionCache != null) {
+                try {
+                    regionCache.close();
+                } catch (IOException e) {
+                    System.err.println("Unable to clean up HiCCUPS region cache " + e.getLocalizedMessage());
+                }
+            }
+
+            for (ParameterSet set : parameterSets) {
+                set.exportResults();
+            }
+
+            if (HiCGlobals.printVerboseComments && !targeted) {
+                long final_time = System.currentTimeMillis();
+                System.out.println("Total time at " + conf.getResolution() + ": " + (final_time - begin_time));
+            }
+        }
+
+        /**
+         * Histogram, threshold and pixel state for one peak width and window of the resolution, saved to its own
+         * directory
+         */
+        private class ParameterSet {
+
+            private final HiCCUPSConfiguration conf;
+            private final File directory;
+            private PrintWriter outputFDR = null;
+
+            private HiCCUPSThresholds thresholds = new HiCCUPSThresholds(w1, w2);
+            private boolean thresholdsAvailable = true;
+
+            // each worker fills its own histogram shard (1st run) or pixel tables (2nd run); merged once the run is done
+            private final HiCCUPSHistograms[] histogramShards = new HiCCUPSHistograms[numCPUThreads];
+            private final EnrichedPixelTable[] enrichedPixelShards = new EnrichedPixelTable[numCPUThreads];
+            private final EnrichedPixelTable[] requestedPixelShards = new EnrichedPixelTable[numCPUThreads];
+
+            private EnrichedPixelTable enrichedPixels = null;
+            private EnrichedPixelTable requestedPixels = null;
+            // when spilling, the enriched pixels of the 2nd run go here instead of enrichedPixels
+            private EnrichedPixelSpill pixelSpill = null;
+
+            ParameterSet(HiCCUPSConfiguration conf, File directory) {
+                this.conf = conf;
+                this.directory = directory;
+
+                // open the print writer early so the file I/O capability is verified before running hiccups
+                // (when sharded, the thresholds are written by the merge stage instead)
+                if (shardStage == null && !targeted) {
+                    outputFDR = HiCFileTools.openWriter(
+                            new File(directory, HiCCUPSUtils.getFDRThresholdsFilename(conf.getResolution())));
+                }
+            }
+
+            void createShards(int runNum, int threadIndex) {
+                if (runNum == 0) {
+                    histogramShards[threadIndex] = new HiCCUPSHistograms(w1, w2);
+                } else {
+                    enrichedPixelShards[threadIndex] = new EnrichedPixelTable(conf.getResolution());
+                    requestedPixelShards[threadIndex] = new EnrichedPixelTable(conf.getResolution());
+                }
+            }
+
+            void openPixelSpill() {
+                try {
+                    pixelSpill = new EnrichedPixelSpill(directory, conf.getResolution(),
+                            thresholdsAvailable ? thresholds : null);
+                } catch (IOException e) {
+                    System.err.println("Unable to spill enriched pixels; keeping them in memory " + e.getLocalizedMessage());
+                }
+            }
+
+            private void calculateThresholds(HiCCUPSHistograms histograms) {
                 long thresh_time0 = System.currentTimeMillis();
 
-                long[][] rcsHistBL = ArrayTools.makeReverse2DCumulativeArray(histBL);
-                long[][] rcsHistDonut = ArrayTools.makeReverse2DCumulativeArray(histDonut);
-                long[][] rcsHistH = ArrayTools.makeReverse2DCumulativeArray(histH);
-                long[][] rcsHistV = ArrayTools.makeReverse2DCumulativeArray(histV);
-
-                for (int i = 0; i < w1; i++) {
-                    float[] unitPoissonPMF = Floats.toArray(Doubles.asList(ArrayTools.generatePoissonPMF(i, w2)));
-                    HiCCUPSUtils.calculateThresholdAndFDR(i, w2, conf.getFDRThreshold(), unitPoissonPMF, rcsHistBL, thresholdBL, fdrLogBL);
-                    HiCCUPSUtils.calculateThresholdAndFDR(i, w2, conf.getFDRThreshold(), unitPoissonPMF, rcsHistDonut, thresholdDonut, fdrLogDonut);
-                    HiCCUPSUtils.calculateThresholdAndFDR(i, w2, conf.getFDRThreshold(), unitPoissonPMF, rcsHistH, thresholdH, fdrLogH);
-                    HiCCUPSUtils.calculateThresholdAndFDR(i, w2, conf.getFDRThreshold(), unitPoissonPMF, rcsHistV, thresholdV, fdrLogV);
+                thresholds.calculate(histograms, conf.getFDRThreshold());
+
+                if (regionSample != null) {
+                    int[] error = thresholds.estimateSamplingError(histograms, conf.getFDRThreshold(),
+                            regionSample.getMeanWeight(), 1.96);
+                    System.out.println("Approximate thresholds at " + conf.getResolution() + " from "
+                            + regionSample.getNumSampled() + " of " + regionSample.getSize() + " regions; 95% bound on "
+                            + "threshold error (BL, donut, H, V): " + Arrays.toString(error));
                 }
 
                 if (HiCGlobals.printVerboseComments) {
                     long thresh_time1 = System.currentTimeMillis();
-                    System.out.println("Time to calculate thresholds: " + (thresh_time1 - thresh_time0) + "ms");
+                    System.out.println("Time to calculate thresholds at " + conf.getResolution() + ": "
+                            + (thresh_time1 - thresh_time0) + "ms");
+                    if (regionCache != null) {
+                        System.out.println("Cached regions: " + regionCache.getBytesInMemory() + " bytes in memory, "
+                                + regionCache.getBytesSpilled() + " bytes spilled to disk");
+                    }
                 }
             }
-        }
 
-        globalList.exportFeatureList(new File(outputDirectory, HiCCUPSUtils.getEnrichedPixelFileName(conf.getResolution())),
-                true, Feature2DList.ListFormat.ENRICHED);
-        if (listGiven) {
-            requestedList.exportFeatureList(new File(outputDirectory, HiCCUPSUtils.getRequestedLoopsFileName(conf.getResolution())),
-                    true, Feature2DList.ListFormat.ENRICHED);
-            givenLoopLists.put(conf.getResolution(), requestedList);
-        }
-        for (int i = 0; i < w1; i++) {
-            outputFDR.println(i + "\t" + thresholdBL[i] + "\t" + thresholdDonut[i] + "\t" + thresholdH[i] +
-                    "\t" + thresholdV[i]);
-        }
-        outputFDR.close();
+            private EnrichedPixelTable mergePixelShards(EnrichedPixelTable[] pixelShards) {
+                EnrichedPixelTable pixels = EnrichedPixelTable.merge(conf.getResolution(), Arrays.asList(pixelShards));
+                if (!thresholdsAvailable) return pixels;
+                pixels.calculateFDR(thresholds.getFdrLogBL(), thresholds.getFdrLogDonut(),
+                        thresholds.getFdrLogH(), thresholds.getFdrLogV());
+                return pixels;
+            }
 
+            private void exportSpilledPixels() {
+                File file = new File(directory, HiCCUPSUtils.getEnrichedPixelFileName(conf.getResolution()));
+                try {
+                    for (EnrichedPixelTable shard : enrichedPixelShards) {
+                        if (shard != null && shard.size() > 0) {
+                            pixelSpill.append(shard);
+                            shard.clear();
+                        }
+                    }
+                    pixelSpill.finish();
+                    pixelSpill.export(file);
+                } catch (IOException e) {
+                    System.err.println("Unable to spill enriched pixels " + e.getLocalizedMessage());
+                    System.exit(61);
+                }
+                if (HiCGlobals.printVerboseComments) {
+                    System.out.println("Spilled " + pixelSpill.size() + " enriched pixels at " + conf.getResolution());
+                }
+            }
 
-        if (HiCGlobals.printVerboseComments) {
-            long final_time = System.currentTimeMillis();
-            System.out.println("Total time: " + (final_time - begin_time));
+            private void exportResults() {
+                if (listGiven) {
+                    requestedPixels = mergePixelShards(requestedPixelShards);
+                    exportEnrichedPixels(requestedPixels, directory, true);
+                }
+                if (targeted) return;
+
+                EnrichedPixelTable pixels = null;
+                if (pixelSpill != null) {
+                    exportSpilledPixels();
+                } else {
+                    pixels = mergePixelShards(enrichedPixelShards);
+                    exportEnrichedPixels(pixels, directory, false);
+                }
+                thresholds.print(outputFDR);
+                outputFDR.close();
+
+                enrichedPixels = pixels;
+            }
         }
+    }
 
-        return globalList;
+    private void exportEnrichedPixels(EnrichedPixelTable pixels, File directory, boolean isRequested) {
+        File file = new File(directory, isRequested ?
+                HiCCUPSUtils.getRequestedLoopsFileName(pixels.getResolution()) :
+                HiCCUPSUtils.getEnrichedPixelFileName(pixels.getResolution()));
+        pixels.toFeature2DList().exportFeatureList(file, true, Feature2DList.ListFormat.ENRICHED);
+    }
+
+    /**
+     * Merge stage of a sharded run: sum the 1st pass histograms of all shards and derive the thresholds
+     * (saved both as the usual fdr_thresholds file and in binary form for the 2nd pass shards)
+     */
+    private void mergeShardHistograms(ChromosomeHandler chromosomeHandler) {
+        for (HiCCUPSConfiguration conf : configurations) {
+            int res = conf.getResolution();
+            try {
+                File[] shardFiles = HiCCUPSShardFiles.findHistogramsFiles(outputDirectory, res);
+                HiCCUPSHistograms[] shards = new HiCCUPSHistograms[shardFiles.length];
+                for (int k = 0; k < shardFiles.length; k++) {
+                    shards[k] = HiCCUPSShardFiles.readHistograms(shardFiles[k], getShardParameters(conf, chromosomeHandler));
+                }
+                HiCCUPSThresholds thresholds = new HiCCUPSThresholds(w1, w2);
+                thresholds.calculate(HiCCUPSHistograms.merge(shards, w1, w2), conf.getFDRThreshold());
+
+                HiCCUPSShardFiles.writeThresholds(HiCCUPSShardFiles.getThresholdsFile(outputDirectory, res),
+                        getRunParameters(conf), thresholds);
+                PrintWriter outputFDR = HiCFileTools.openWriter(
+                        new File(outputDirectory, HiCCUPSUtils.getFDRThresholdsFilename(res)));
+                thresholds.print(outputFDR);
+                outputFDR.close();
+                System.out.println("Merged " + shardFiles.length + " histogram shards for resolution " + res);
+            } catch (IOException e) {
+                System.err.println("Unable to merge HiCCUPS histograms for resolution " + res + " " + e.getLocalizedMessage());
+                System.exit(58);
+            }
+        }
     }
 
-    private void runCoreCodeForHiCCUPS(HiCCUPSConfiguration conf, AtomicInteger indexOfHiCCUPSRegion, AtomicInteger currentProgressStatus,
-                                       HiCCUPSRegionHandler regionHandler, int matrixSize,
-                                       float[] thresholdBL, float[] thresholdDonut, float[] thresholdH, float[] thresholdV,
-                                       NormalizationType norm, HiCZoom zoom,
-                                       long[][] histBL, long[][] histDonut, long[][] histH, long[][] histV, int runNum,
-                                       float[][] fdrLogBL, float[][] fdrLogDonut, float[][] fdrLogH, float[][] fdrLogV,
-                                       Feature2DHandler inputListFeature2DHandler, Feature2DList requestedList, Feature2DList globalList) {
+    /**
+     * Post processing stage of a sharded run: combine the 2nd pass pixels of all shards
+     */
+    private void loadShardPixels(ChromosomeHandler chromosomeHandler, Map<Integer, EnrichedPixelTable> loopLists,
+                                 Map<Integer, EnrichedPixelTable> givenLoopLists) {
+        for (HiCCUPSConfiguration conf : configurations) {
+            int res = conf.getResolution();
+            String parameters = getShardParameters(conf, chromosomeHandler);
+            try {
+                loopLists.put(res, readShardPixels(res, parameters, false));
+                if (listGiven) {
+                    givenLoopLists.put(res, readShardPixels(res, parameters, true));
+                }
+            } catch (IOException e) {
+                System.err.println("Unable to read HiCCUPS pixels for resolution " + res + " " + e.getLocalizedMessage());
+                System.exit(59);
+            }
+        }
+    }
 
+    private EnrichedPixelTable readShardPixels(int res, String parameters, boolean isRequested) throws IOException {
+        File[] shardFiles = HiCCUPSShardFiles.findPixelsFiles(outputDirectory, res, isRequested);
+        List<EnrichedPixelTable> shards = new ArrayList<>();
+        for (File shardFile : shardFiles) {
+            shards.add(HiCCUPSShardFiles.readPixels(shardFile, parameters));
+        }
+        EnrichedPixelTable pixels = EnrichedPixelTable.merge(res, shards);
+        exportEnrichedPixels(pixels, outputDirectory, isRequested);
+        return pixels;
+    }
 
-        int indexOfRegionForThread = indexOfHiCCUPSRegion.getAndIncrement();
+    /**
+     * Evaluates each region handed out by the prefetcher for every parameter set of the run, so that a sweep
+     * only reads the .hic file once
+     *
+     * @param threadIndex shards of the parameter sets filled by this worker
+     */
+    private void runCoreCodeForHiCCUPS(List<ResolutionRun.ParameterSet> parameterSets, int threadIndex,
+                                       HiCCUPSRegionPrefetcher prefetcher, HiCCUPSRegionScheduler scheduler,
+                                       HiCCUPSRegionSample regionSample, AtomicInteger currentProgressStatus,
+                                       int numRegions, int matrixSize, int runNum,
+                                       Feature2DHandler inputListFeature2DHandler, HiCCUPSRegionCache regionCache) {
 
-        GPUController gpuController = buildGPUController(conf);
+        // only built when a region actually has to go through the kernel
+        HiCCUPSComputeBackend[] backends = new HiCCUPSComputeBackend[parameterSets.size()];
 
-        while (indexOfRegionForThread < regionHandler.getSize()) {
+        HiCCUPSRegionData regionData = nextRegion(prefetcher);
 
-            HiCCUPSRegionContainer regionContainer = regionHandler.getRegionFromIndex(indexOfRegionForThread);
-            try {
-                if (HiCGlobals.printVerboseComments) {
-                    System.out.println();
-                    System.out.println("GPU Run Details");
-                    System.out.println("Row bounds " + Arrays.toString(regionContainer.getRowBounds()));
-                    System.out.println("Col bounds " + Arrays.toString(regionContainer.getColumnBounds()));
-                }
+        while (regionData != null) {
 
-                int[] rowBounds = regionContainer.getRowBounds();
-                int[] columnBounds = regionContainer.getColumnBounds();
+            HiCCUPSRegionContainer regionContainer = regionData.getRegionContainer();
+            if (HiCGlobals.printVerboseComments) {
+                System.out.println();
+                System.out.println("GPU Run Details");
+                System.out.println("Row bounds " + Arrays.toString(regionContainer.getRowBounds()));
+                System.out.println("Col bounds " + Arrays.toString(regionContainer.getColumnBounds()));
+            }
 
-                GPUOutputContainer gpuOutputs = gpuController.process(regionHandler, regionContainer, matrixSize,
-                        thresholdBL, thresholdDonut, thresholdH, thresholdV, norm, zoom);
+            int[] rowBounds = regionContainer.getRowBounds();
+            int[] columnBounds = regionContainer.getColumnBounds();
+            long kernelTime = 0;
+
+            for (int k = 0; k < parameterSets.size(); k++) {
+                ResolutionRun.ParameterSet set = parameterSets.get(k);
+                HiCCUPSConfiguration conf = set.conf;
+                HiCCUPSThresholds thresholds = set.thresholds;
+
+                GPUOutputContainer gpuOutputs = regionData.getCachedOutputs();
+                if (gpuOutputs != null) {
+                    gpuOutputs.updatePeaks(thresholds.getThresholdBL(), thresholds.getThresholdDonut(),
+                            thresholds.getThresholdH(), thresholds.getThresholdV());
+                } else {
+                    if (backends[k] == null) {
+                        // the 2nd pass only keeps the peaks unless the values of requested loops are reported too
+                        backends[k] = buildComputeBackend(conf, matrixSize, runNum == 1 && !listGiven);
+                    }
+                    long kernelStart = System.nanoTime();
+                    gpuOutputs = backends[k].process(regionData, thresholds.getThresholdBL(),
+                            thresholds.getThresholdDonut(), thresholds.getThresholdH(), thresholds.getThresholdV());
+                    kernelTime += System.nanoTime() - kernelStart;
+                    if (runNum == 0 && regionCache != null) {
+                        cacheRegion(regionCache, regionData.getRegionIndex(), gpuOutputs);
+                    }
+                }
 
                 int diagonalCorrection = (rowBounds[4] - columnBounds[4]) + conf.getPeakWidth() + 2;
 
+                // masking of missing values and the diagonal is done within the same sweep over the outputs
                 if (runNum == 0) {
-                    gpuOutputs.cleanUpBinNans();
-                    gpuOutputs.cleanUpBinDiagonal(diagonalCorrection);
-                    gpuOutputs.updateHistograms(histBL, histDonut, histH, histV, w1, w2);
+                    long weight = regionSample != null ? regionSample.getWeight(regionData.getRegionIndex()) : 1;
+                    gpuOutputs.updateHistograms(set.histogramShards[threadIndex], diagonalCorrection, w1, w2, weight);
 
                 } else if (runNum == 1) {
-                    gpuOutputs.cleanUpPeakNaNs();
-                    gpuOutputs.cleanUpPeakDiagonal(diagonalCorrection);
-
                     Chromosome chromosome = regionContainer.getChromosome();
+                    EnrichedPixelTable enrichedPixels = set.enrichedPixelShards[threadIndex];
 
-                    Feature2DList peaksList = gpuOutputs.extractPeaks(chromosome.getIndex(), chromosome.getName(),
-                            w1, w2, rowBounds[4], columnBounds[4], conf.getResolution());
-                    Feature2DTools.calculateFDR(peaksList, fdrLogBL, fdrLogDonut, fdrLogH, fdrLogV);
-                    globalList.add(peaksList);
+                    // targeted runs only need the peak values cleaned up for the requested loops
+                    gpuOutputs.extractPeaks(diagonalCorrection, targeted ? null : enrichedPixels,
+                            chromosome.getIndex(), chromosome.getName(), w1, w2, rowBounds[4], columnBounds[4]);
+                    if (set.pixelSpill != null && enrichedPixels.size() >= PIXEL_SPILL_CHUNK_SIZE) {
+                        spillPixels(set.pixelSpill, enrichedPixels);
+                    }
 
                     if (listGiven) {
                         float rowBound1GenomeCoords = ((float) rowBounds[4]) * conf.getResolution();
@@ -527,36 +1176,105 @@ public class HiCCUPS extends JuicerCLT {
                                 columnBound1GenomeCoords, rowBound2GenomeCoords, columnBound2GenomeCoords);
                         List<Feature2D> inputListFoundFeatures = inputListFeature2DHandler.getContainedFeatures(chromosome.getIndex(), chromosome.getIndex(),
                                 currentWindow);
-                        Feature2DList peaksRequestedList = gpuOutputs.extractPeaksListGiven(chromosome.getIndex(), chromosome.getName(),
-                                w1, w2, rowBounds[4], columnBounds[4], conf.getResolution(), inputListFoundFeatures);
-                        Feature2DTools.calculateFDR(peaksRequestedList, fdrLogBL, fdrLogDonut, fdrLogH, fdrLogV);
-                        requestedList.add(peaksRequestedList);
+                        gpuOutputs.extractPeaksListGiven(set.requestedPixelShards[threadIndex], chromosome.getIndex(),
+                                chromosome.getName(), w1, w2, rowBounds[4], columnBounds[4], inputListFoundFeatures);
                     }
-
                 }
-                int currProg = currentProgressStatus.incrementAndGet();
-                int resonableDivisor = Math.max(regionHandler.getSize() / 20, 1);
-                if (HiCGlobals.printVerboseComments || currProg % resonableDivisor == 0) {
-                    DecimalFormat df = new DecimalFormat("#.####");
-                    df.setRoundingMode(RoundingMode.FLOOR);
-                    System.out.println(df.format(Math.floor((100.0 * currProg) / regionHandler.getSize())) + "% ");
+            }
+
+            // the region read is shared by all parameter sets, so it is only handed back once they are done
+            if (regionData.getCachedOutputs() == null) {
+                scheduler.recordTime(regionData.getRegionIndex(), kernelTime);
+                if (HiCGlobals.printVerboseComments) {
+                    System.out.println("Kernel time " + (kernelTime / 1000000) + "ms");
                 }
+                prefetcher.recycle(regionData);
+            }
 
-            } catch (IOException e) {
-                System.err.println("No data in map region");
+            int currProg = currentProgressStatus.incrementAndGet();
+            int resonableDivisor = Math.max(numRegions / 20, 1);
+            if (HiCGlobals.printVerboseComments || currProg % resonableDivisor == 0) {
+                DecimalFormat df = new DecimalFormat("#.####");
+                df.setRoundingMode(RoundingMode.FLOOR);
+                System.out.println(df.format(Math.floor((100.0 * currProg) / numRegions)) + "% ");
             }
 
-            indexOfRegionForThread = indexOfHiCCUPSRegion.getAndIncrement();
+            regionData = nextRegion(prefetcher);
         }
     }
 
-    private GPUController buildGPUController(HiCCUPSConfiguration conf) {
+    /**
+     * @return parameters the thresholds of a sharded run are checked against (see HiCCUPSShardFiles)
+     */
+    private String getRunParameters(HiCCUPSConfiguration conf) {
+        return HiCCUPSShardFiles.getRunParameters(conf, norm, restrictSearchRegions ? maxLoopDistance : 0);
+    }
+
+    /**
+     * @return parameters the histograms and pixels of the shards are checked against; the matrix size is never
+     * tuned for sharded runs, so every stage tiles the regions with the same one
+     */
+    private String getShardParameters(HiCCUPSConfiguration conf, ChromosomeHandler chromosomeHandler) {
+        return HiCCUPSShardFiles.getShardParameters(getRunParameters(conf), matrixSize,
+                chromosomeHandler.getChromosomeArrayWithoutAllByAll());
+    }
+
+    /**
+     * A region that can't be cached is simply read and run through the kernel again in the 2nd pass
+     */
+    private void cacheRegion(HiCCUPSRegionCache regionCache, int regionIndex, GPUOutputContainer gpuOutputs) {
         try {
-            return new GPUController(conf.getWindowWidth(), matrixSize,
-                    conf.getPeakWidth(), useCPUVersionHiCCUPS);
-        } catch (Exception e) {
+            regionCache.store(regionIndex, gpuOutputs);
+        } catch (IOException e) {
+            System.err.println("Unable to cache HiCCUPS region " + e.getLocalizedMessage());
+        }
+    }
+
+        private void spillPixels(EnrichedPixelSpill pixelSpill, EnrichedPixelTable enrichedPixels) {
+        try {
+            pixelSpill.append(enrichedPixels);
+            enrichedPixels.clear();
+        } catch (IOException e) {
+            System.err.println("Unable to spill enriched pixels " + e.getLocalizedMessage());
+            System.exit(61);
+        }
+    }
+
+    private HiCCUPSRegionData nextRegion(HiCCUPSRegionPrefetcher prefetcher) {
+        try {
+            return prefetcher.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    private int chooseMatrixSize(HiCCUPSConfiguration conf, ChromosomeHandler chromosomeHandler) {
+        long maxChromosomeLength = 0;
+        for (Chromosome chromosome : chromosomeHandler.getChromosomeArrayWithoutAllByAll()) {
+            maxChromosomeLength = Math.max(maxChromosomeLength, chromosome.getLength());
+        }
+        int maxChromosomeWidth = (int) (maxChromosomeLength / conf.getResolution()) + 1;
+
+        int numPrefetchedRegions = prefetchDepth > 0 ? prefetchDepth : 2 * numCPUThreads;
+        HiCCUPSTileSizeTuner tuner = new HiCCUPSTileSizeTuner(useCPUVersionHiCCUPS, numCPUThreads, numPrefetchedRegions);
+        int size = tuner.chooseMatrixSize(conf, maxChromosomeWidth, calibrateMatrixSize);
+        System.out.println("Using Matrix Size " + size + " at resolution " + conf.getResolution());
+        return size;
+    }
+
+    private HiCCUPSComputeBackend buildComputeBackend(HiCCUPSConfiguration conf, int matrixSize, boolean peaksOnly) {
+        try {
+            int maxDistance = restrictSearchRegions ? maxLoopDistance / conf.getResolution() : -1;
+            return HiCCUPSComputeBackends.create(computeBackend, conf.getWindowWidth(), matrixSize,
+                    conf.getPeakWidth(), maxDistance, peaksOnly, rowPool);
+        } catch (Exception | LinkageError e) {
             e.printStackTrace();
-            System.err.println("GPU/CUDA Installation Not Detected");
+            if (HiCCUPSComputeBackends.GPU.equals(computeBackend)) {
+                System.err.println("GPU/CUDA Installation Not Detected");
+            } else {
+                System.err.println("Unable to start the " + computeBackend + " backend");
+            }
             System.err.println("Exiting HiCCUPS");
             System.exit(26);
             return null;
@@ -589,6 +1307,48 @@ public class HiCCUPS extends JuicerCLT {
         }
     }
 
+    private void enableTargetedMode(int specifiedMatrixSize) {
+        targeted = true;
+        if (specifiedMatrixSize <= 0) {
+            determineValidMatrixSize(TARGETED_MATRIX_SIZE);
+        }
+        if (cacheRegionResults) {
+            System.out.println("Targeted mode runs a single pass; not caching regions");
+            cacheRegionResults = false;
+        }
+    }
+
+    private void determineShard(CommandLineParserForJuicer juicerParser) {
+        String stage = juicerParser.getShardStageOption();
+        if (stage == null) return;
+        if (!stage.equals(SHARD_STAGE_HISTOGRAMS) && !stage.equals(SHARD_STAGE_THRESHOLDS)
+                && !stage.equals(SHARD_STAGE_PEAKS) && !stage.equals(SHARD_STAGE_POSTPROCESS)) {
+            System.err.println("Invalid shard stage " + stage);
+            printUsageAndExit();
+        }
+        shardStage = stage;
+
+        if (stage.equals(SHARD_STAGE_HISTOGRAMS) || stage.equals(SHARD_STAGE_PEAKS)) {
+            String shard = juicerParser.getShardOption();
+            try {
+                String[] parts = shard.split("/");
+                shardIndex = Integer.parseInt(parts[0]);
+                numShards = Integer.parseInt(parts[1]);
+            } catch (Exception e) {
+                numShards = 0;
+            }
+            if (numShards < 1 || shardIndex < 0 || shardIndex >= numShards) {
+                System.err.println("The " + stage + " stage needs a valid --shard index/count (e.g. 0/8)");
+                printUsageAndExit();
+            }
+        }
+
+        if (cacheRegionResults) {
+            System.out.println("Each shard runs a single pass; not caching regions");
+            cacheRegionResults = false;
+        }
+    }
+
     private void determineValidMatrixSize(CommandLineParserForJuicer juicerParser) {
         determineValidMatrixSize(juicerParser.getMatrixSizeOption());
     }
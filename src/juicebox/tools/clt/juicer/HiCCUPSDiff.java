@@ -41,6 +41,10 @@ import juicebox.tools.utils.juicer.hiccups.HiCCUPSUtils;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * HiCCUPS Diff
@@ -75,7 +79,7 @@ public class HiCCUPSDiff extends JuicerCLT {
         // what variables should they be able to send in?
         // need to add maxEnrich
         super("hiccupsdiff [-m matrixSize] [-k normalization (NONE/VC/VC_SQRT/KR)] [-c chromosome(s)] " +
-                "[-f fdr] [-p peak width] [-i window] [-t thresholds] [-d centroid distances] " +
+                "[-f fdr] [-p peak width] [-i window] [-t thresholds] [-d centroid distances] [--targeted] " +
                 "<firstHicFile> <secondHicFile> <firstLoopList> <secondLoopList> <outputDirectory>");
     }
 
@@ -163,8 +167,11 @@ public class HiCCUPSDiff extends JuicerCLT {
                 norm2 = preferredNorms[1];
             }
 
+            // only the loops of the other list are needed, so they can be evaluated without a genome wide scan
+            boolean targeted = juicerParser.getTargetedOption();
+
             int matrixSize = juicerParser.getMatrixSizeOption();
-            if (matrixSize <= 0) matrixSize = 1024;
+            if (matrixSize <= 0) matrixSize = targeted ? HiCCUPS.TARGETED_MATRIX_SIZE : 1024;
 
             boolean usingCPUVersion = false;
             if (juicerParser.getCPUVersionOfHiCCUPSOptions()) {
@@ -184,34 +191,62 @@ public class HiCCUPSDiff extends JuicerCLT {
             hiccups1 = new HiCCUPS();
             hiccups2 = new HiCCUPS();
             hiccups1.initializeDirectly(ds1, outputDirectory + File.separator + "file1", args[4],
-                    norm1, matrixSize, commonChromosomesHandler, configs, thresholds, usingCPUVersion, restrictSearchRegions);
+                    norm1, matrixSize, commonChromosomesHandler, configs, thresholds, usingCPUVersion, restrictSearchRegions, targeted);
             hiccups2.initializeDirectly(ds2, outputDirectory + File.separator + "file2", args[3],
-                    norm2, matrixSize, commonChromosomesHandler, configs, thresholds, usingCPUVersion, restrictSearchRegions);
+                    norm2, matrixSize, commonChromosomesHandler, configs, thresholds, usingCPUVersion, restrictSearchRegions, targeted);
         }
     }
 
     @Override
     public void run() {
 
+        // both maps (and then the comparisons) share one pool of numCPUThreads workers
+        ExecutorService executor = Executors.newFixedThreadPool(numCPUThreads);
+
         if (hiccups1 != null && hiccups2 != null) {
-            hiccups1.run();
-            hiccups2.run();
+            hiccups1.setExecutor(executor);
+            hiccups2.setExecutor(executor);
+
+            // the runs only coordinate (their workers go to the shared pool), so they get threads of their own
+            ExecutorService runs = Executors.newFixedThreadPool(2);
+            Future<?> run1 = runs.submit(hiccups1::run);
+            Future<?> run2 = runs.submit(hiccups2::run);
+            runs.shutdown();
+
+            // Wait until both runs finish
+            try {
+                run1.get();
+                run2.get();
+            } catch (InterruptedException | ExecutionException e) {
+                System.err.println("HiCCUPS run failed " + e.getLocalizedMessage());
+                System.exit(63);
+            }
         }
 
+        // load all the loops resulting from running HiCCUPs on the first HiC file with the second loop list (and vice versa)
+        // then filter by max enrichment: observed < maxEnrich*expected BL & donut & V & H
+        Future<Feature2DList> futureResults1 = executor.submit(() -> HiCCUPSUtils.filterOutFeaturelistByEnrichment(configs,
+                outputDirectory + File.separator + "file1", maxEnrich, commonChromosomesHandler));
+        Future<Feature2DList> futureResults2 = executor.submit(() -> HiCCUPSUtils.filterOutFeaturelistByEnrichment(configs,
+                outputDirectory + File.separator + "file2", maxEnrich, commonChromosomesHandler));
+
         // for every feature in second loop list, see if there's a reasonably close one in first list (and vice versa)
-        Feature2DList conservedLoopList2 = Feature2DTools.extractReproducibleCentroids(looplist1, looplist2, 50000, 0.2);
-        Feature2DList conservedLoopList1 = Feature2DTools.extractReproducibleCentroids(looplist2, looplist1, 50000, 0.2);
+        Feature2DList conservedLoopList2 = Feature2DTools.extractReproducibleCentroids(looplist1, looplist2, 50000, 0.2, executor);
+        Feature2DList conservedLoopList1 = Feature2DTools.extractReproducibleCentroids(looplist2, looplist1, 50000, 0.2, executor);
 
         // get the differences - loops that appear only in the respective loop list
         Feature2DList diff1 = Feature2DTools.compareLists(conservedLoopList1, looplist1, false);
         Feature2DList diff2 = Feature2DTools.compareLists(conservedLoopList2, looplist2, false);
 
-        // load all the loops resulting from running HiCCUPs on the first HiC file with the second loop list (and vice versa)
-        // then filter by max enrichment: observed < maxEnrich*expected BL & donut & V & H
-        Feature2DList results1 = HiCCUPSUtils.filterOutFeaturelistByEnrichment(configs, outputDirectory + File.separator + "file1",
-                maxEnrich, commonChromosomesHandler);
-        Feature2DList results2 = HiCCUPSUtils.filterOutFeaturelistByEnrichment(configs, outputDirectory + File.separator + "file2",
-                maxEnrich, commonChromosomesHandler);
+        Feature2DList results1 = null, results2 = null;
+        try {
+            results1 = futureResults1.get();
+            results2 = futureResults2.get();
+        } catch (InterruptedException | ExecutionException e) {
+            System.err.println("Unable to load requested loop lists " + e.getLocalizedMessage());
+            System.exit(62);
+        }
+        executor.shutdown();
 
         // differential loop list 1 is loops that appeared in list1 that are not enriched in Hi-C file 2
         Feature2DList differentialList1 = Feature2DList.getIntersection(diff1, results2);
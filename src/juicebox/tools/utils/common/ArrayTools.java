@@ -141,6 +141,29 @@ public class ArrayTools {
         return paddedArray;
     }
 
+    /**
+     * Same as Arrays.copyOfRange(original, from, to) converted to floats (without boxing), then padded with val
+     * up to the given length
+     *
+     * @param original
+     * @param from
+     * @param to
+     * @param length
+     * @param val
+     * @return
+     */
+    public static float[] copyRangeToFloatArray(double[] original, int from, int to, int length, float val) {
+        float[] array = new float[Math.max(to - from, length)];
+        int end = Math.min(to, original.length);
+        for (int i = from; i < end; i++) {
+            array[i - from] = (float) original[i];
+        }
+        for (int i = to - from; i < array.length; i++) {
+            array[i] = val;
+        }
+        return array;
+    }
+
     public static int[] extractIntegers(List<String> stringList) {
         int[] array = new int[stringList.size()];
 
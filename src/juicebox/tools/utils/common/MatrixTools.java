@@ -24,7 +24,10 @@
 
 package juicebox.tools.utils.common;
 
+import javastraw.reader.block.Block;
 import javastraw.reader.block.ContactRecord;
+import javastraw.reader.mzd.MatrixZoomData;
+import javastraw.reader.type.NormalizationType;
 import juicebox.tools.utils.juicer.apa.APARegionStatistics;
 import org.apache.commons.math3.linear.Array2DRowRealMatrix;
 import org.apache.commons.math3.linear.RealMatrix;
@@ -205,6 +208,47 @@ public class MatrixTools {
     }
 
 
+    /**
+     * Read a region of a map straight into a row-major float array (no intermediate RealMatrix or boxed values).
+     * Entry (i, j) of the region is stored at dest[offset + i * stride + j]; that numRows x numCols window of dest
+     * is cleared first, so the array can be reused across regions.
+     *
+     * @param fillUnderDiagonal also place records mirrored across the diagonal, as in
+     *                          HiCFileTools.extractLocalBoundedRegion
+     */
+    public static void fillLocalBoundedRegion(float[] dest, int offset, int stride, MatrixZoomData zd,
+                                              long binXStart, long binXEnd, long binYStart, long binYEnd,
+                                              int numRows, int numCols, NormalizationType normalizationType,
+                                              boolean fillUnderDiagonal) throws IOException {
+        for (int i = 0; i < numRows; i++) {
+            Arrays.fill(dest, offset + i * stride, offset + i * stride + numCols, 0);
+        }
+
+        List<Block> blocks = zd.getNormalizedBlocksOverlapping(binXStart, binYStart, binXEnd, binYEnd,
+                normalizationType, false, fillUnderDiagonal);
+        if (blocks == null) {
+            throw new IOException("Unable to read region " + binXStart + "-" + binXEnd + " x " + binYStart + "-" + binYEnd);
+        }
+
+        for (Block b : blocks) {
+            if (b == null) continue;
+            for (ContactRecord rec : b.getContactRecords()) {
+                long relativeX = rec.getBinX() - binXStart;
+                long relativeY = rec.getBinY() - binYStart;
+                if (relativeX >= 0 && relativeX < numRows && relativeY >= 0 && relativeY < numCols) {
+                    dest[(int) (offset + relativeX * stride + relativeY)] = rec.getCounts();
+                }
+                if (fillUnderDiagonal && rec.getBinX() != rec.getBinY()) {
+                    relativeX = rec.getBinY() - binXStart;
+                    relativeY = rec.getBinX() - binYStart;
+                    if (relativeX >= 0 && relativeX < numRows && relativeY >= 0 && relativeY < numCols) {
+                        dest[(int) (offset + relativeX * stride + relativeY)] = rec.getCounts();
+                    }
+                }
+            }
+        }
+    }
+
     /**
      * Write data from matrix out to specified file with each row on a separate line
      *
@@ -0,0 +1,182 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011-2021 Broad Institute, Aiden Lab, Rice University, Baylor College of Medicine
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+
+
+package juicebox.tools.utils.juicer.hiccups;
+
+import javastraw.feature2D.Feature2DList;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Enriched pixels of one resolution spilled to disk as they are found, one file per chromosome, so that the
+ * full genome's pixels never have to be held in memory at once.
+ * <p/>
+ * Workers append their pixel tables in chunks (each chunk in the binary form of EnrichedPixelTable.write, with
+ * fdr values already assigned if thresholds were given); only the write to the file of a chromosome is done under
+ * a lock, held by that file alone. Once
+ * the run is done, the pixels are read back one chromosome at a time for export and post processing. The spill
+ * files live in a temporary directory which is removed when the spill is closed.
+ */
+public class EnrichedPixelSpill implements Closeable {
+
+    private final int resolution;
+    private final HiCCUPSThresholds thresholds;
+    private final File directory;
+    private final Map<Integer, DataOutputStream> writers = new TreeMap<>();
+    private final Map<Integer, File> files = new TreeMap<>();
+    private final AtomicLong size = new AtomicLong(0);
+
+    /**
+     * @param thresholds used to assign the fdr values of appended pixels, or null to leave them unassigned
+     */
+    public EnrichedPixelSpill(File parentDirectory, int resolution, HiCCUPSThresholds thresholds) throws IOException {
+        this.resolution = resolution;
+        this.thresholds = thresholds;
+        this.directory = Files.createTempDirectory(parentDirectory.toPath(), "enriched_pixels_" + resolution + "_")
+                .toFile();
+    }
+
+    /**
+     * Appends the pixels to the files of their chromosomes; the table can be cleared afterwards
+     */
+    public void append(EnrichedPixelTable pixels) throws IOException {
+        if (thresholds != null) {
+            pixels.calculateFDR(thresholds.getFdrLogBL(), thresholds.getFdrLogDonut(),
+                    thresholds.getFdrLogH(), thresholds.getFdrLogV());
+        }
+        for (Map.Entry<Integer, EnrichedPixelTable> entry : pixels.splitByChromosome().entrySet()) {
+            DataOutputStream out = getWriter(entry.getKey());
+            synchronized (out) {
+                entry.getValue().write(out);
+            }
+        }
+        size.addAndGet(pixels.size());
+    }
+
+    private synchronized DataOutputStream getWriter(int chrIndex) throws IOException {
+        DataOutputStream out = writers.get(chrIndex);
+        if (out == null) {
+            File file = new File(directory, "chr_" + chrIndex + ".bin");
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+            writers.put(chrIndex, out);
+            files.put(chrIndex, file);
+        }
+        return out;
+    }
+
+    /**
+     * Closes the spill files for writing; call once all workers are done
+     */
+    public synchronized void finish() throws IOException {
+        for (DataOutputStream out : writers.values()) {
+            out.close();
+        }
+        writers.clear();
+    }
+
+    public synchronized Set<Integer> getChromosomeIndices() {
+        return new TreeSet<>(files.keySet());
+    }
+
+    public long size() {
+        return size.get();
+    }
+
+    public int getResolution() {
+        return resolution;
+    }
+
+    /**
+     * @return all spilled pixels of the chromosome (empty if there are none)
+     */
+    public EnrichedPixelTable read(int chrIndex) throws IOException {
+        File file;
+        synchronized (this) {
+            file = files.get(chrIndex);
+        }
+        List<EnrichedPixelTable> chunks = new ArrayList<>();
+        if (file != null) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                while (true) {
+                    try {
+                        chunks.add(EnrichedPixelTable.read(in));
+                    } catch (EOFException e) {
+                        break;
+                    }
+                }
+            }
+        }
+        return EnrichedPixelTable.merge(resolution, chunks);
+    }
+
+    /**
+     * Writes the pixels as a single enriched pixel list, one chromosome at a time: each chromosome is exported
+     * with Feature2DList.exportFeatureList (ListFormat.ENRICHED, as the pixels of a run that is not spilled) and
+     * appended to the output, keeping the header lines ("#") of the first chromosome only
+     */
+    public void export(File outputFile) throws IOException {
+        try (PrintWriter writer = new PrintWriter(new BufferedWriter(new FileWriter(outputFile)))) {
+            boolean headerWritten = false;
+            for (int chrIndex : getChromosomeIndices()) {
+                EnrichedPixelTable pixels = read(chrIndex);
+                if (pixels.size() == 0) continue;
+
+                File chromosomeFile = new File(directory, "chr_" + chrIndex + ".bedpe");
+                pixels.toFeature2DList().exportFeatureList(chromosomeFile, true, Feature2DList.ListFormat.ENRICHED);
+                try (BufferedReader reader = new BufferedReader(new FileReader(chromosomeFile))) {
+                    boolean inHeader = true;
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        inHeader = inHeader && line.startsWith("#");
+                        if (!inHeader || !headerWritten) {
+                            writer.println(line);
+                        }
+                    }
+                }
+                headerWritten = true;
+                if (!chromosomeFile.delete()) {
+                    chromosomeFile.deleteOnExit();
+                }
+            }
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        finish();
+        for (File file : files.values()) {
+            if (!file.delete()) {
+                file.deleteOnExit();
+            }
+        }
+        if (!directory.delete()) {
+            directory.deleteOnExit();
+        }
+    }
+}
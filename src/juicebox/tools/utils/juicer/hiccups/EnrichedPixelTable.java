@@ -0,0 +1,376 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011-2021 Broad Institute, Aiden Lab, Rice University, Baylor College of Medicine
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+
+package juicebox.tools.utils.juicer.hiccups;
+
+import javastraw.feature2D.Feature2D;
+import javastraw.feature2D.Feature2DList;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.*;
+import java.util.function.IntPredicate;
+
+/**
+ * Columnar store of the enriched pixels found by HiCCUPS (positions, observed/expected/bin/fdr values and,
+ * after post-processing, the centroid details) kept in primitive arrays.
+ * <p/>
+ * Pixels stay in this form through extraction, FDR assignment and post-processing; Feature2D objects
+ * (with their string attribute maps) are only created when a list is exported or merged across resolutions.
+ */
+public class EnrichedPixelTable {
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private static final int OBSERVED = 0, PEAK = 1;
+    private static final int EXPECTED_BL = 2, EXPECTED_DONUT = 3, EXPECTED_H = 4, EXPECTED_V = 5;
+    private static final int BIN_BL = 6, BIN_DONUT = 7, BIN_H = 8, BIN_V = 9;
+    private static final int FDR_BL = 10, FDR_DONUT = 11, FDR_H = 12, FDR_V = 13;
+    private static final int NUM_FLOAT_COLUMNS = 14;
+
+    private static final int CHR_INDEX = 0, POS1 = 1, POS2 = 2;
+    private static final int RADIUS = 3, CENTROID1 = 4, CENTROID2 = 5, NUM_COLLAPSED = 6;
+    private static final int NUM_INT_COLUMNS = 7;
+
+    private final int resolution;
+    private final Map<Integer, String> chromosomeNames = new HashMap<>();
+    private final float[][] floatColumns = new float[NUM_FLOAT_COLUMNS][];
+    private final int[][] intColumns = new int[NUM_INT_COLUMNS][];
+    private int size = 0;
+
+    public EnrichedPixelTable(int resolution) {
+        this(resolution, INITIAL_CAPACITY);
+    }
+
+    private EnrichedPixelTable(int resolution, int capacity) {
+        this.resolution = resolution;
+        capacity = Math.max(capacity, 1);
+        for (int k = 0; k < NUM_FLOAT_COLUMNS; k++) {
+            floatColumns[k] = new float[capacity];
+        }
+        for (int k = 0; k < NUM_INT_COLUMNS; k++) {
+            intColumns[k] = new int[capacity];
+        }
+    }
+
+    /**
+     * Concatenate tables (e.g. the per-thread shards of a run); null tables are skipped
+     */
+    public static EnrichedPixelTable merge(int resolution, Collection<EnrichedPixelTable> tables) {
+        int totalSize = 0;
+        for (EnrichedPixelTable table : tables) {
+            if (table != null) totalSize += table.size;
+        }
+        EnrichedPixelTable merged = new EnrichedPixelTable(resolution, totalSize);
+        for (EnrichedPixelTable table : tables) {
+            if (table != null) merged.addAll(table);
+        }
+        return merged;
+    }
+
+    /**
+     * Add a pixel from the kernel outputs (same arguments as HiCCUPSUtils.generatePeak)
+     */
+    public void add(int chrIndex, String chrName, int rowPos, int colPos, float observed, float peak,
+                    float expectedBL, float expectedDonut, float expectedH, float expectedV,
+                    float binBL, float binDonut, float binH, float binV) {
+        ensureCapacity(size + 1);
+        chromosomeNames.put(chrIndex, chrName);
+
+        intColumns[CHR_INDEX][size] = chrIndex;
+        intColumns[POS1][size] = Math.min(rowPos, colPos);
+        intColumns[POS2][size] = Math.max(rowPos, colPos);
+        intColumns[RADIUS][size] = -1;
+        intColumns[CENTROID1][size] = -1;
+        intColumns[CENTROID2][size] = -1;
+        intColumns[NUM_COLLAPSED][size] = 0;
+
+        floatColumns[OBSERVED][size] = observed;
+        floatColumns[PEAK][size] = peak;
+        floatColumns[EXPECTED_BL][size] = expectedBL;
+        floatColumns[EXPECTED_DONUT][size] = expectedDonut;
+        floatColumns[EXPECTED_H][size] = expectedH;
+        floatColumns[EXPECTED_V][size] = expectedV;
+        floatColumns[BIN_BL][size] = binBL;
+        floatColumns[BIN_DONUT][size] = binDonut;
+        floatColumns[BIN_H][size] = binH;
+        floatColumns[BIN_V][size] = binV;
+        floatColumns[FDR_BL][size] = Float.NaN;
+        floatColumns[FDR_DONUT][size] = Float.NaN;
+        floatColumns[FDR_H][size] = Float.NaN;
+        floatColumns[FDR_V][size] = Float.NaN;
+        size++;
+    }
+
+    public void addAll(EnrichedPixelTable other) {
+        ensureCapacity(size + other.size);
+        chromosomeNames.putAll(other.chromosomeNames);
+        for (int k = 0; k < NUM_FLOAT_COLUMNS; k++) {
+            System.arraycopy(other.floatColumns[k], 0, floatColumns[k], size, other.size);
+        }
+        for (int k = 0; k < NUM_INT_COLUMNS; k++) {
+            System.arraycopy(other.intColumns[k], 0, intColumns[k], size, other.size);
+        }
+        size += other.size;
+    }
+
+    /**
+     * Copy a row of another table, marking it as the centroid of a cluster of pixels
+     */
+    void addCentroid(EnrichedPixelTable other, int row, int radius, int centroid1, int centroid2, int numCollapsed) {
+        ensureCapacity(size + 1);
+        int chrIndex = other.intColumns[CHR_INDEX][row];
+        chromosomeNames.put(chrIndex, other.chromosomeNames.get(chrIndex));
+        copyRow(other, row, size);
+        intColumns[RADIUS][size] = radius;
+        intColumns[CENTROID1][size] = centroid1;
+        intColumns[CENTROID2][size] = centroid2;
+        intColumns[NUM_COLLAPSED][size] = numCollapsed;
+        size++;
+    }
+
+    private void copyRow(EnrichedPixelTable source, int sourceRow, int destinationRow) {
+        for (int k = 0; k < NUM_FLOAT_COLUMNS; k++) {
+            floatColumns[k][destinationRow] = source.floatColumns[k][sourceRow];
+        }
+        for (int k = 0; k < NUM_INT_COLUMNS; k++) {
+            intColumns[k][destinationRow] = source.intColumns[k][sourceRow];
+        }
+    }
+
+    private void ensureCapacity(int capacity) {
+        int currentCapacity = intColumns[0].length;
+        if (capacity <= currentCapacity) return;
+        int newCapacity = Math.max(capacity, currentCapacity + (currentCapacity >> 1));
+        for (int k = 0; k < NUM_FLOAT_COLUMNS; k++) {
+            floatColumns[k] = Arrays.copyOf(floatColumns[k], newCapacity);
+        }
+        for (int k = 0; k < NUM_INT_COLUMNS; k++) {
+            intColumns[k] = Arrays.copyOf(intColumns[k], newCapacity);
+        }
+    }
+
+    /**
+     * Calculate fdr values for all pixels (see HiCCUPSUtils.calculateFDR)
+     */
+    public void calculateFDR(float[][] fdrLogBL, float[][] fdrLogDonut, float[][] fdrLogH, float[][] fdrLogV) {
+        for (int i = 0; i < size; i++) {
+            int observed = (int) floatColumns[OBSERVED][i];
+            int binBL = (int) floatColumns[BIN_BL][i];
+            int binDonut = (int) floatColumns[BIN_DONUT][i];
+            int binH = (int) floatColumns[BIN_H][i];
+            int binV = (int) floatColumns[BIN_V][i];
+
+            if (binBL >= 0 && binDonut >= 0 && binH >= 0 && binV >= 0 && observed >= 0) {
+                floatColumns[FDR_BL][i] = fdrLogBL[binBL][observed];
+                floatColumns[FDR_DONUT][i] = fdrLogDonut[binDonut][observed];
+                floatColumns[FDR_H][i] = fdrLogH[binH][observed];
+                floatColumns[FDR_V][i] = fdrLogV[binV][observed];
+            } else {
+                System.out.println("Error in calculateFDR binBL=" + binBL + " binDonut=" + binDonut + " binH=" + binH +
+                        " binV=" + binV + " observed=" + observed);
+            }
+        }
+    }
+
+    /**
+     * @return the pixels of each chromosome, in chromosome index order
+     */
+    public Map<Integer, EnrichedPixelTable> splitByChromosome() {
+        Map<Integer, EnrichedPixelTable> tables = new TreeMap<>();
+        for (int i = 0; i < size; i++) {
+            int chrIndex = intColumns[CHR_INDEX][i];
+            EnrichedPixelTable table = tables.get(chrIndex);
+            if (table == null) {
+                table = new EnrichedPixelTable(resolution);
+                table.chromosomeNames.put(chrIndex, chromosomeNames.get(chrIndex));
+                tables.put(chrIndex, table);
+            }
+            table.ensureCapacity(table.size + 1);
+            table.copyRow(this, i, table.size);
+            table.size++;
+        }
+        return tables;
+    }
+
+    /**
+     * @return new table with the rows for which keep is true, in the same order
+     */
+    public EnrichedPixelTable filter(IntPredicate keep) {
+        EnrichedPixelTable filtered = new EnrichedPixelTable(resolution);
+        filtered.chromosomeNames.putAll(chromosomeNames);
+        for (int i = 0; i < size; i++) {
+            if (keep.test(i)) {
+                filtered.ensureCapacity(filtered.size + 1);
+                filtered.copyRow(this, i, filtered.size);
+                filtered.size++;
+            }
+        }
+        return filtered;
+    }
+
+    public void write(DataOutputStream out) throws IOException {
+        out.writeInt(resolution);
+        out.writeInt(size);
+        out.writeInt(chromosomeNames.size());
+        for (Map.Entry<Integer, String> entry : chromosomeNames.entrySet()) {
+            out.writeInt(entry.getKey());
+            out.writeUTF(entry.getValue());
+        }
+        for (int k = 0; k < NUM_FLOAT_COLUMNS; k++) {
+            for (int i = 0; i < size; i++) {
+                out.writeFloat(floatColumns[k][i]);
+            }
+        }
+        for (int k = 0; k < NUM_INT_COLUMNS; k++) {
+            for (int i = 0; i < size; i++) {
+                out.writeInt(intColumns[k][i]);
+            }
+        }
+    }
+
+    public static EnrichedPixelTable read(DataInputStream in) throws IOException {
+        int resolution = in.readInt();
+        int size = in.readInt();
+        EnrichedPixelTable table = new EnrichedPixelTable(resolution, size);
+        int numChromosomes = in.readInt();
+        for (int c = 0; c < numChromosomes; c++) {
+            int chrIndex = in.readInt();
+            table.chromosomeNames.put(chrIndex, in.readUTF());
+        }
+        for (int k = 0; k < NUM_FLOAT_COLUMNS; k++) {
+            for (int i = 0; i < size; i++) {
+                table.floatColumns[k][i] = in.readFloat();
+            }
+        }
+        for (int k = 0; k < NUM_INT_COLUMNS; k++) {
+            for (int i = 0; i < size; i++) {
+                table.intColumns[k][i] = in.readInt();
+            }
+        }
+        table.size = size;
+        return table;
+    }
+
+    public Feature2DList toFeature2DList() {
+        Feature2DList features = new Feature2DList();
+        for (int i = 0; i < size; i++) {
+            int chrIndex = intColumns[CHR_INDEX][i];
+            features.add(chrIndex, chrIndex, toFeature2D(i));
+        }
+        return features;
+    }
+
+    /**
+     * Materialize a row with the same attributes HiCCUPS has always attached to its features
+     */
+    public Feature2D toFeature2D(int i) {
+        Feature2D feature = HiCCUPSUtils.generatePeak(chromosomeNames.get(intColumns[CHR_INDEX][i]),
+                floatColumns[OBSERVED][i], floatColumns[PEAK][i], intColumns[POS1][i], intColumns[POS2][i],
+                floatColumns[EXPECTED_BL][i], floatColumns[EXPECTED_DONUT][i],
+                floatColumns[EXPECTED_H][i], floatColumns[EXPECTED_V][i],
+                floatColumns[BIN_BL][i], floatColumns[BIN_DONUT][i], floatColumns[BIN_H][i], floatColumns[BIN_V][i],
+                resolution);
+        if (!Float.isNaN(floatColumns[FDR_BL][i])) {
+            HiCCUPSUtils.addFDRAttributes(feature, floatColumns[FDR_BL][i], floatColumns[FDR_DONUT][i],
+                    floatColumns[FDR_H][i], floatColumns[FDR_V][i]);
+        }
+        if (intColumns[NUM_COLLAPSED][i] > 0) {
+            HiCCUPSUtils.addCentroidAttributes(feature, resolution, intColumns[RADIUS][i],
+                    intColumns[CENTROID1][i], intColumns[CENTROID2][i], intColumns[NUM_COLLAPSED][i],
+                    floatColumns[BIN_BL][i], floatColumns[BIN_DONUT][i]);
+        }
+        return feature;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Drop all rows (keeping the allocated capacity), e.g. once they have been spilled to disk
+     */
+    public void clear() {
+        chromosomeNames.clear();
+        size = 0;
+    }
+
+    public int getResolution() {
+        return resolution;
+    }
+
+    public int getChromosomeIndex(int i) {
+        return intColumns[CHR_INDEX][i];
+    }
+
+    public int getPos1(int i) {
+        return intColumns[POS1][i];
+    }
+
+    public int getPos2(int i) {
+        return intColumns[POS2][i];
+    }
+
+    public int getNumCollapsed(int i) {
+        return intColumns[NUM_COLLAPSED][i];
+    }
+
+    public int getRadius(int i) {
+        return intColumns[RADIUS][i];
+    }
+
+    public int getCentroid1(int i) {
+        return intColumns[CENTROID1][i];
+    }
+
+    public int getCentroid2(int i) {
+        return intColumns[CENTROID2][i];
+    }
+
+    public float getObserved(int i) {
+        return floatColumns[OBSERVED][i];
+    }
+
+    public float getExpectedBL(int i) {
+        return floatColumns[EXPECTED_BL][i];
+    }
+
+    public float getExpectedDonut(int i) {
+        return floatColumns[EXPECTED_DONUT][i];
+    }
+
+    public float getExpectedH(int i) {
+        return floatColumns[EXPECTED_H][i];
+    }
+
+    public float getExpectedV(int i) {
+        return floatColumns[EXPECTED_V][i];
+    }
+
+    public float getFdrSum(int i) {
+        return floatColumns[FDR_BL][i] + floatColumns[FDR_DONUT][i] + floatColumns[FDR_H][i] + floatColumns[FDR_V][i];
+    }
+}
@@ -0,0 +1,243 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011-2021 Broad Institute, Aiden Lab, Rice University, Baylor College of Medicine
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+
+package juicebox.tools.utils.juicer.hiccups;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Manual check (like GPUTesting, not run by the build) of the columnar pixel table along the path the pixels take in
+ * a run: per-worker tables filled during the 2nd pass, concatenated, fdr values assigned in one go, split by
+ * chromosome and clustered into centroids. The clustering is compared with the original LinkedList version, which
+ * worked on Feature2D lists (a small Comparable pixel stands in for Feature2D here).
+ */
+class EnrichedPixelTableTesting {
+
+    private static final int RESOLUTION = 5000, CLUSTER_RADIUS = 20000;
+    private static final int NUM_WORKERS = 4, NUM_CHROMOSOMES = 3, NUM_BINS = 40, MAX_OBSERVED = 12;
+
+    public static void test() throws IOException {
+        Random random = new Random(1);
+
+        // 2nd pass: each worker adds the peaks of its own regions to its own table
+        List<EnrichedPixelTable> shards = new ArrayList<>();
+        List<float[]> added = new ArrayList<>();
+        for (int w = 0; w < NUM_WORKERS; w++) {
+            EnrichedPixelTable shard = new EnrichedPixelTable(RESOLUTION);
+            int numPixels = 200 + random.nextInt(300);
+            for (int k = 0; k < numPixels; k++) {
+                int chrIndex = 1 + random.nextInt(NUM_CHROMOSOMES);
+                int row = random.nextInt(150) * RESOLUTION;
+                int column = row + random.nextInt(150) * RESOLUTION;
+                float[] values = new float[14];
+                values[0] = chrIndex;
+                values[1] = random.nextBoolean() ? row : column;
+                values[2] = values[1] == row ? column : row;
+                values[3] = random.nextInt(MAX_OBSERVED);
+                for (int v = 4; v < 14; v++) {
+                    values[v] = v < 10 ? random.nextFloat() * 10 : random.nextInt(NUM_BINS);
+                }
+                shard.add(chrIndex, "chr" + chrIndex, (int) values[1], (int) values[2], values[3], values[4],
+                        values[5], values[6], values[7], values[8], values[10], values[11], values[12], values[13]);
+                added.add(values);
+            }
+            shards.add(shard);
+        }
+        shards.add(null);
+
+        EnrichedPixelTable pixels = EnrichedPixelTable.merge(RESOLUTION, shards);
+        checkMergeAndFDR(pixels, added, random);
+        checkWriteRead(pixels);
+
+        int numCentroids = 0;
+        for (Map.Entry<Integer, EnrichedPixelTable> entry : pixels.splitByChromosome().entrySet()) {
+            numCentroids += checkClustering(entry.getKey(), entry.getValue());
+        }
+        System.out.println("Pixel table: " + pixels.size() + " pixels from " + NUM_WORKERS + " workers, "
+                + numCentroids + " centroids as in the LinkedList version");
+    }
+
+    /**
+     * Shards are concatenated in order, with positions sorted so that pos1 <= pos2, and the fdr values of every row
+     * come from the fdr logs at its bins and observed value
+     */
+    private static void checkMergeAndFDR(EnrichedPixelTable pixels, List<float[]> added, Random random) {
+        if (pixels.size() != added.size()) {
+            throw new IllegalStateException("Merged table has " + pixels.size() + " rows instead of " + added.size());
+        }
+        float[][][] fdrLogs = new float[4][NUM_BINS][MAX_OBSERVED];
+        for (float[][] fdrLog : fdrLogs) {
+            for (float[] row : fdrLog) {
+                for (int j = 0; j < row.length; j++) {
+                    row[j] = random.nextFloat();
+                }
+            }
+        }
+        pixels.calculateFDR(fdrLogs[0], fdrLogs[1], fdrLogs[2], fdrLogs[3]);
+
+        for (int i = 0; i < pixels.size(); i++) {
+            float[] values = added.get(i);
+            int observed = (int) values[3];
+            float fdrSum = fdrLogs[0][(int) values[10]][observed] + fdrLogs[1][(int) values[11]][observed]
+                    + fdrLogs[2][(int) values[12]][observed] + fdrLogs[3][(int) values[13]][observed];
+            if (pixels.getChromosomeIndex(i) != (int) values[0]
+                    || pixels.getPos1(i) != Math.min(values[1], values[2])
+                    || pixels.getPos2(i) != Math.max(values[1], values[2])
+                    || pixels.getObserved(i) != values[3] || pixels.getExpectedBL(i) != values[5]
+                    || pixels.getExpectedV(i) != values[8] || pixels.getFdrSum(i) != fdrSum) {
+                throw new IllegalStateException("Row " + i + " of the merged table does not hold the pixel added");
+            }
+        }
+    }
+
+    private static void checkWriteRead(EnrichedPixelTable pixels) throws IOException {
+        byte[] written = serialize(pixels);
+        EnrichedPixelTable read = EnrichedPixelTable.read(new DataInputStream(new ByteArrayInputStream(written)));
+        if (!Arrays.equals(written, serialize(read))) {
+            throw new IllegalStateException("Pixel table changed by a write and read");
+        }
+    }
+
+    private static byte[] serialize(EnrichedPixelTable pixels) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        pixels.write(new DataOutputStream(bytes));
+        return bytes.toByteArray();
+    }
+
+    /**
+     * The pixels of one chromosome, which include duplicated positions (regions of several workers) and ties in the
+     * observed value, have to give the same centroids, radii and counts, in the same order, as the LinkedList version
+     */
+    private static int checkClustering(int chrIndex, EnrichedPixelTable pixels) {
+        List<Pixel> pixelList = new ArrayList<>();
+        for (int i = 0; i < pixels.size(); i++) {
+            pixelList.add(new Pixel(pixels.getPos1(i), pixels.getPos2(i), pixels.getObserved(i)));
+        }
+        List<int[]> expected = coalesceWithLinkedList(pixelList);
+        EnrichedPixelTable actual = HiCCUPSUtils.coalescePixelsToCentroid(RESOLUTION, pixels, CLUSTER_RADIUS);
+        if (actual.size() != expected.size()) {
+            throw new IllegalStateException("chr" + chrIndex + ": " + actual.size() + " centroids instead of "
+                    + expected.size());
+        }
+        for (int i = 0; i < actual.size(); i++) {
+            int[] centroid = {actual.getPos1(i), actual.getPos2(i), actual.getRadius(i),
+                    actual.getCentroid1(i), actual.getCentroid2(i), actual.getNumCollapsed(i)};
+            if (actual.getChromosomeIndex(i) != chrIndex || !Arrays.equals(expected.get(i), centroid)) {
+                throw new IllegalStateException("chr" + chrIndex + ", centroid " + i + ": "
+                        + Arrays.toString(centroid) + " instead of " + Arrays.toString(expected.get(i)));
+            }
+        }
+        return actual.size();
+    }
+
+    /**
+     * HiCCUPSUtils.coalescePixelsToCentroid as it was on Feature2D lists
+     *
+     * @return pos1, pos2, radius, centroid1, centroid2 and numCollapsed of each centroid, in output order
+     */
+    private static List<int[]> coalesceWithLinkedList(List<Pixel> feature2DList) {
+        LinkedList<Pixel> featureLL = new LinkedList<>(new HashSet<>(feature2DList));
+        List<int[]> coalesced = new ArrayList<>();
+
+        while (!featureLL.isEmpty()) {
+            Collections.sort(featureLL);
+            Collections.reverse(featureLL);
+
+            Pixel pixel = featureLL.pollFirst();
+            List<Pixel> pixelList = new ArrayList<>();
+            pixelList.add(pixel);
+
+            int pixelListX = pixel.pos1;
+            int pixelListY = pixel.pos2;
+            double r = 0;
+            double pixelClusterRadius = CLUSTER_RADIUS;
+
+            for (Pixel px : featureLL) {
+                if (HiCCUPSUtils.hypotenuse(pixelListX - px.pos1, pixelListY - px.pos2) <= pixelClusterRadius) {
+                    pixelList.add(px);
+                    pixelListX = mean(pixelList, true);
+                    pixelListY = mean(pixelList, false);
+
+                    List<Double> distances = new ArrayList<>();
+                    for (Pixel px2 : pixelList) {
+                        distances.add(HiCCUPSUtils.hypotenuse(pixelListX - px2.pos1, pixelListY - px2.pos2));
+                    }
+                    r = Math.round(Collections.max(distances));
+                    pixelClusterRadius = CLUSTER_RADIUS + r;
+                }
+            }
+
+            coalesced.add(new int[]{pixel.pos1, pixel.pos2, (int) Math.round(r),
+                    pixelListX + RESOLUTION / 2, pixelListY + RESOLUTION / 2, pixelList.size()});
+            featureLL.removeAll(pixelList);
+        }
+        return coalesced;
+    }
+
+    private static int mean(List<Pixel> pixelList, boolean first) {
+        double total = 0;
+        for (Pixel px : pixelList) {
+            total += first ? px.pos1 : px.pos2;
+        }
+        return (int) (total / pixelList.size());
+    }
+
+    /**
+     * Stand-in for Feature2D: equal when at the same position, ordered by observed value and then by position
+     */
+    private static class Pixel implements Comparable<Pixel> {
+        private final int pos1, pos2;
+        private final float observed;
+
+        Pixel(int pos1, int pos2, float observed) {
+            this.pos1 = pos1;
+            this.pos2 = pos2;
+            this.observed = observed;
+        }
+
+        @Override
+        public int compareTo(Pixel o) {
+            int comparison = Float.compare(observed, o.observed);
+            if (comparison == 0) comparison = Integer.compare(pos1, o.pos1);
+            if (comparison == 0) comparison = Integer.compare(pos2, o.pos2);
+            return comparison;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof Pixel && ((Pixel) obj).pos1 == pos1 && ((Pixel) obj).pos2 == pos2;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * pos1 + pos2;
+        }
+    }
+}
@@ -25,10 +25,11 @@
 package juicebox.tools.utils.juicer.hiccups;
 
 import javastraw.feature2D.Feature2D;
-import javastraw.feature2D.Feature2DList;
 import juicebox.HiCGlobals;
-import juicebox.tools.utils.common.ArrayTools;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.List;
 
 /**
@@ -36,97 +37,156 @@ import java.util.List;
  */
 public class GPUOutputContainer {
 
-    private final float[][] observed;
-    private final float[][] peak;
-    private final float[][] binBL;
-    private final float[][] binDonut;
-    private final float[][] binH;
-    private final float[][] binV;
-    private final float[][] expectedBL;
-    private final float[][] expectedDonut;
-    private final float[][] expectedH;
-    private final float[][] expectedV;
+    private final float[] observed;
+    private final float[] peak;
+    private final float[] binBL;
+    private final float[] binDonut;
+    private final float[] binH;
+    private final float[] binV;
+    private final float[] expectedBL;
+    private final float[] expectedDonut;
+    private final float[] expectedH;
+    private final float[] expectedV;
     private final int numRows;
     private final int numColumns;
+    private final int offset;
+    private final int stride;
 
-
-    public GPUOutputContainer(float[][] observed, float[][] peak,
-                              float[][] binBL, float[][] binDonut, float[][] binH, float[][] binV,
-                              float[][] expectedBL, float[][] expectedDonut, float[][] expectedH, float[][] expectedV) {
-        this.observed = ArrayTools.deepCopy(observed);
-        this.peak = ArrayTools.deepCopy(peak);
-        this.numRows = observed.length;
-        this.numColumns = observed[0].length;
-
-        this.binBL = ArrayTools.deepCopy(binBL);
-        this.binDonut = ArrayTools.deepCopy(binDonut);
-        this.binH = ArrayTools.deepCopy(binH);
-        this.binV = ArrayTools.deepCopy(binV);
-
-        this.expectedBL = ArrayTools.deepCopy(expectedBL);
-        this.expectedDonut = ArrayTools.deepCopy(expectedDonut);
-        this.expectedH = ArrayTools.deepCopy(expectedH);
-        this.expectedV = ArrayTools.deepCopy(expectedV);
+    /**
+     * View of a numRows x numColumns window of flat row-major arrays; entry (i, j) is at offset + i * stride + j.
+     * The arrays are not copied, so they can be reused (e.g. kernel output buffers) once this container is done with.
+     */
+    public GPUOutputContainer(int numRows, int numColumns, int offset, int stride,
+                              float[] observed, float[] peak,
+                              float[] binBL, float[] binDonut, float[] binH, float[] binV,
+                              float[] expectedBL, float[] expectedDonut, float[] expectedH, float[] expectedV) {
+        this.numRows = numRows;
+        this.numColumns = numColumns;
+        this.offset = offset;
+        this.stride = stride;
+
+        this.observed = observed;
+        this.peak = peak;
+
+        this.binBL = binBL;
+        this.binDonut = binDonut;
+        this.binH = binH;
+        this.binV = binV;
+
+        this.expectedBL = expectedBL;
+        this.expectedDonut = expectedDonut;
+        this.expectedH = expectedH;
+        this.expectedV = expectedV;
     }
 
     /**
-     * Ensure NaN entries are uniform across the various arrays
+     * Write the observed, expected and bin values (everything but the peak values, which depend on the thresholds)
+     * so that they can be reused by a later pass without re-running the kernel. Bins are in [0, w1) and are stored
+     * as bytes, with NaN as -1.
      */
-    public void cleanUpBinNans() {
-
-        for (int i = 0; i < numRows; i++) {
-            for (int j = 0; j < numColumns; j++) {
-
-                if (Float.isNaN(expectedBL[i][j]) || Float.isNaN(expectedDonut[i][j]) ||
-                        Float.isNaN(expectedH[i][j]) || Float.isNaN(expectedV[i][j])) {
-
-                    binBL[i][j] = Float.NaN;
-                    binDonut[i][j] = Float.NaN;
-                    binH[i][j] = Float.NaN;
-                    binV[i][j] = Float.NaN;
+    void writeKernelOutputs(DataOutputStream out) throws IOException {
+        out.writeInt(numRows);
+        out.writeInt(numColumns);
+        for (float[] values : new float[][]{observed, expectedBL, expectedDonut, expectedH, expectedV}) {
+            for (int i = 0; i < numRows; i++) {
+                int index = offset + i * stride;
+                for (int j = 0; j < numColumns; j++, index++) {
+                    out.writeFloat(values[index]);
+                }
+            }
+        }
+        for (float[] bins : new float[][]{binBL, binDonut, binH, binV}) {
+            for (int i = 0; i < numRows; i++) {
+                int index = offset + i * stride;
+                for (int j = 0; j < numColumns; j++, index++) {
+                    out.writeByte(Float.isNaN(bins[index]) ? -1 : (int) bins[index]);
                 }
             }
         }
     }
 
-    public void cleanUpPeakNaNs() {
+    /**
+     * Inverse of writeKernelOutputs; peak values are left at 0 until updatePeaks is called
+     */
+    static GPUOutputContainer readKernelOutputs(DataInputStream in) throws IOException {
+        int numRows = in.readInt();
+        int numColumns = in.readInt();
+        int size = numRows * numColumns;
+        float[][] values = new float[5][size];
+        for (float[] array : values) {
+            for (int k = 0; k < size; k++) {
+                array[k] = in.readFloat();
+            }
+        }
+        float[][] bins = new float[4][size];
+        for (float[] array : bins) {
+            for (int k = 0; k < size; k++) {
+                byte val = in.readByte();
+                array[k] = val < 0 ? Float.NaN : val;
+            }
+        }
+        return new GPUOutputContainer(numRows, numColumns, 0, numColumns, values[0], new float[size],
+                bins[0], bins[1], bins[2], bins[3], values[1], values[2], values[3], values[4]);
+    }
 
+    /**
+     * Recalculate the peak values for a new set of thresholds (same as the end of the kernel)
+     */
+    public void updatePeaks(float[] thresholdBL, float[] thresholdDonut, float[] thresholdH, float[] thresholdV) {
         for (int i = 0; i < numRows; i++) {
-            for (int j = 0; j < numColumns; j++) {
-
-                if (Float.isNaN(expectedBL[i][j]) || Float.isNaN(expectedDonut[i][j]) ||
-                        Float.isNaN(expectedH[i][j]) || Float.isNaN(expectedV[i][j])) {
-
-                    peak[i][j] = Float.NaN;
-                }
+            int index = offset + i * stride;
+            for (int j = 0; j < numColumns; j++, index++) {
+                float sbtrkt = Math.max(thresholdBL[(int) binBL[index]], thresholdDonut[(int) binDonut[index]]);
+                sbtrkt = Math.max(sbtrkt, thresholdH[(int) binH[index]]);
+                sbtrkt = Math.max(sbtrkt, thresholdV[(int) binV[index]]);
+                peak[index] = observed[index] - sbtrkt;
             }
         }
     }
 
-    public synchronized void updateHistograms(long[][] histBL, long[][] histDonut, long[][] histH, long[][] histV, int maxRows, int maxColumns) {
+    /**
+     * 1st pass sweep: adds every pixel with valid expected values that lies beyond the relative diagonal
+     * (j - i > relativeDiagonal) to the histograms. Not synchronized; each worker is expected to pass in its own
+     * histogram shard.
+     *
+     * @param weight count added per pixel (sampled regions stand in for several regions)
+     */
+    public void updateHistograms(HiCCUPSHistograms histograms, int relativeDiagonal, int maxRows, int maxColumns,
+                                 long weight) {
+        long[][] histBL = histograms.getBL();
+        long[][] histDonut = histograms.getDonut();
+        long[][] histH = histograms.getH();
+        long[][] histV = histograms.getV();
         for (int i = 0; i < numRows; i++) {
-            for (int j = 0; j < numColumns; j++) {
+            // pixels up to the relative diagonal are never counted
+            int firstColumn = Math.max(0, Math.min(numColumns, i + relativeDiagonal + 1));
+            int index = offset + i * stride + firstColumn;
+            for (int j = firstColumn; j < numColumns; j++, index++) {
 
-                if (Float.isNaN(observed[i][j]) || Float.isInfinite(observed[i][j]))
+                if (Float.isNaN(observed[index]) || Float.isInfinite(observed[index]))
+                    continue;
+                if (Float.isNaN(expectedBL[index]) || Float.isNaN(expectedDonut[index]) ||
+                        Float.isNaN(expectedH[index]) || Float.isNaN(expectedV[index]))
                     continue;
 
-                int val = (int) observed[i][j];
-                processHistogramValue(binBL[i][j], val, histBL, maxRows, maxColumns);
-                processHistogramValue(binDonut[i][j], val, histDonut, maxRows, maxColumns);
-                processHistogramValue(binH[i][j], val, histH, maxRows, maxColumns);
-                processHistogramValue(binV[i][j], val, histV, maxRows, maxColumns);
+                int val = (int) observed[index];
+                processHistogramValue(binBL[index], val, histBL, maxRows, maxColumns, weight);
+                processHistogramValue(binDonut[index], val, histDonut, maxRows, maxColumns, weight);
+                processHistogramValue(binH[index], val, histH, maxRows, maxColumns, weight);
+                processHistogramValue(binV[index], val, histV, maxRows, maxColumns, weight);
             }
         }
     }
 
-    private void processHistogramValue(float potentialRowIndex, int columnIndex, long[][] histogram, int maxRows, int maxColumns) {
+    private void processHistogramValue(float potentialRowIndex, int columnIndex, long[][] histogram, int maxRows, int maxColumns,
+                                       long weight) {
         if (Float.isNaN(potentialRowIndex))
             return;
 
         int rowIndex = (int) potentialRowIndex;
         if (rowIndex >= 0 && rowIndex < maxRows) {
             if (columnIndex >= 0 && columnIndex < maxColumns) {
-                histogram[rowIndex][columnIndex] += 1;
+                histogram[rowIndex][columnIndex] += weight;
                 if (HiCGlobals.printVerboseComments && histogram[rowIndex][columnIndex] < 0) {
                     System.out.println("earlier source row " + rowIndex + " col " + columnIndex + " -- " + histogram[rowIndex][columnIndex]);
                 }
@@ -134,104 +194,100 @@ public class GPUOutputContainer {
         }
     }
 
-    public void cleanUpBinDiagonal(int relativeDiagonal) {
-
-        // correction for diagonal (don't need to double number of calculations)
-        if (relativeDiagonal >= (-1 * numRows)) {
-
-            // TODO optimize so only necessary region eliminated
-            for (int i = 0; i < numRows; i++) {
-                for (int j = 0; j < numColumns; j++) {
-                    if (j - i <= relativeDiagonal) {
-                        binBL[i][j] = Float.NaN;
-                        binDonut[i][j] = Float.NaN;
-                        binH[i][j] = Float.NaN;
-                        binV[i][j] = Float.NaN;
-                    }
-                }
-            }
-        }
-
-
-    }
-
-    public void cleanUpPeakDiagonal(int relativeDiagonal) {
-        if (relativeDiagonal >= (-1 * numRows)) {
-
-            // TODO optimize so only necessary region eliminated
-            for (int i = 0; i < numRows; i++) {
-                for (int j = 0; j < numColumns; j++) {
-                    if (j - i <= relativeDiagonal) {
-                        peak[i][j] = Float.NaN;
+    /**
+     * NaN out every output of the pixels further from the diagonal than relativeMaxDistance (j - i in this container),
+     * so they are neither counted in the histograms nor reported
+     */
+    public void maskBeyondDistance(int relativeMaxDistance) {
+        for (int i = 0; i < numRows; i++) {
+            int index = offset + i * stride;
+            for (int j = 0; j < numColumns; j++, index++) {
+                if (j - i > relativeMaxDistance) {
+                    for (float[] values : new float[][]{observed, peak, binBL, binDonut, binH, binV,
+                            expectedBL, expectedDonut, expectedH, expectedV}) {
+                        values[index] = Float.NaN;
                     }
                 }
             }
         }
     }
 
-    public Feature2DList extractPeaks(int chrIndex, String chrName, int w1, int w2,
-                                      int rowOffset, int columnOffset, int resolution) {
+    /**
+     * 2nd pass sweep: sets the peak value of pixels with missing expected values or on/below the relative diagonal
+     * (j - i <= relativeDiagonal) to NaN, and adds the remaining pixels with a positive peak value to peaks
+     * (if not null) while the row is still being visited
+     */
+    public void extractPeaks(int relativeDiagonal, EnrichedPixelTable peaks, int chrIndex, String chrName,
+                             int w1, int w2, int rowOffset, int columnOffset) {
 
-        Feature2DList peaks = new Feature2DList();
+        int resolution = peaks != null ? peaks.getResolution() : 0;
 
         for (int i = 0; i < numRows; i++) {
-            for (int j = 0; j < numColumns; j++) {
+            int firstColumn = Math.max(0, Math.min(numColumns, i + relativeDiagonal + 1));
+            int index = offset + i * stride;
+            for (int j = 0; j < firstColumn; j++, index++) {
+                peak[index] = Float.NaN;
+            }
+            for (int j = firstColumn; j < numColumns; j++, index++) {
+
+                float expectedBLVal = expectedBL[index];
+                float expectedDonutVal = expectedDonut[index];
+                float expectedHVal = expectedH[index];
+                float expectedVVal = expectedV[index];
+                if (Float.isNaN(expectedBLVal) || Float.isNaN(expectedDonutVal) ||
+                        Float.isNaN(expectedHVal) || Float.isNaN(expectedVVal)) {
+                    peak[index] = Float.NaN;
+                    continue;
+                }
 
-                float peakVal = peak[i][j];
+                float peakVal = peak[index];
 
-                if (Float.isNaN(peakVal) || peakVal <= 0)
+                if (peaks == null || Float.isNaN(peakVal) || peakVal <= 0)
                     continue;
 
-                float observedVal = observed[i][j];
-                float expectedBLVal = expectedBL[i][j];
-                float expectedDonutVal = expectedDonut[i][j];
-                float expectedHVal = expectedH[i][j];
-                float expectedVVal = expectedV[i][j];
-                float binBLVal = binBL[i][j];
-                float binDonutVal = binDonut[i][j];
-                float binHVal = binH[i][j];
-                float binVVal = binV[i][j];
-
-                int rowPos = (i + rowOffset) * resolution;
-                int colPos = (j + columnOffset) * resolution;
+                float observedVal = observed[index];
+                float binBLVal = binBL[index];
+                float binDonutVal = binDonut[index];
+                float binHVal = binH[index];
+                float binVVal = binV[index];
 
                 if (!(Float.isNaN(observedVal) ||
-                        Float.isNaN(expectedBLVal) || Float.isNaN(expectedDonutVal) || Float.isNaN(expectedHVal) || Float.isNaN(expectedVVal) ||
                         Float.isNaN(binBLVal) || Float.isNaN(binDonutVal) || Float.isNaN(binHVal) || Float.isNaN(binVVal))) {
                     if (observedVal < w2 && binBLVal < w1 && binDonutVal < w1 && binHVal < w1 && binVVal < w1) {
 
-                        peaks.add(chrIndex, chrIndex, HiCCUPSUtils.generatePeak(chrName, observedVal, peakVal,
-                                rowPos, colPos, expectedBLVal, expectedDonutVal, expectedHVal, expectedVVal,
-                                binBLVal, binDonutVal, binHVal, binVVal, resolution));
+                        int rowPos = (i + rowOffset) * resolution;
+                        int colPos = (j + columnOffset) * resolution;
+                        peaks.add(chrIndex, chrName, rowPos, colPos, observedVal, peakVal,
+                                expectedBLVal, expectedDonutVal, expectedHVal, expectedVVal,
+                                binBLVal, binDonutVal, binHVal, binVVal);
                     }
                 }
             }
         }
-
-        return peaks;
     }
 
-    public Feature2DList extractPeaksListGiven(int chrIndex, String chrName, int w1, int w2,
-                                               int rowOffset, int columnOffset, int resolution, List<Feature2D> inputListFoundFeatures) {
+    public void extractPeaksListGiven(EnrichedPixelTable peaks, int chrIndex, String chrName, int w1, int w2,
+                                      int rowOffset, int columnOffset, List<Feature2D> inputListFoundFeatures) {
 
-        Feature2DList peaks = new Feature2DList();
+        int resolution = peaks.getResolution();
 
         for (Feature2D f : inputListFoundFeatures) {
 	
 			int i = (int) ((f.getStart1() + f.getEnd1()) / (2 * resolution)) - rowOffset;
 			int j = (int) ((f.getStart2() + f.getEnd2()) / (2 * resolution)) - columnOffset;
-			float peakVal = peak[i][j];
+			int index = offset + i * stride + j;
+			float peakVal = peak[index];
 	
 	
-			float observedVal = observed[i][j];
-			float expectedBLVal = expectedBL[i][j];
-			float expectedDonutVal = expectedDonut[i][j];
-			float expectedHVal = expectedH[i][j];
-			float expectedVVal = expectedV[i][j];
-			float binBLVal = binBL[i][j];
-			float binDonutVal = binDonut[i][j];
-            float binHVal = binH[i][j];
-            float binVVal = binV[i][j];
+			float observedVal = observed[index];
+			float expectedBLVal = expectedBL[index];
+			float expectedDonutVal = expectedDonut[index];
+			float expectedHVal = expectedH[index];
+			float expectedVVal = expectedV[index];
+			float binBLVal = binBL[index];
+			float binDonutVal = binDonut[index];
+            float binHVal = binH[index];
+            float binVVal = binV[index];
 
             int rowPos = (i + rowOffset) * resolution;
             int colPos = (j + columnOffset) * resolution;
@@ -241,14 +297,11 @@ public class GPUOutputContainer {
                     Float.isNaN(binBLVal) || Float.isNaN(binDonutVal) || Float.isNaN(binHVal) || Float.isNaN(binVVal))) {
                 if (observedVal < w2 && binBLVal < w1 && binDonutVal < w1 && binHVal < w1 && binVVal < w1) {
 
-                    peaks.add(chrIndex, chrIndex, HiCCUPSUtils.generatePeak(chrName, observedVal, peakVal,
-                            rowPos, colPos, expectedBLVal, expectedDonutVal, expectedHVal, expectedVVal,
-                            binBLVal, binDonutVal, binHVal, binVVal, resolution));
+                    peaks.add(chrIndex, chrName, rowPos, colPos, observedVal, peakVal,
+                            expectedBLVal, expectedDonutVal, expectedHVal, expectedVVal,
+                            binBLVal, binDonutVal, binHVal, binVVal);
                 }
             }
         }
-
-
-        return peaks;
     }
 }
@@ -0,0 +1,268 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011-2021 Broad Institute, Aiden Lab, Rice University, Baylor College of Medicine
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+
+package juicebox.tools.utils.juicer.hiccups;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Manual check (like GPUTesting, not run by the build) of the fused 1st and 2nd pass sweeps of GPUOutputContainer
+ * against the separate cleanUp{Bin,Peak}{NaNs,Diagonal} passes they replaced. The sweeps now start each row at the
+ * relative diagonal instead of NaN-ing the pixels below it, so one set of outputs (NaN and infinite values, out of
+ * range bins, padding around the rows) is swept at every relative diagonal from above the first column to past the
+ * last one, in a wide and a tall container.
+ */
+class GPUOutputContainerTesting {
+
+    private static final int W1 = 40, W2 = 10000, WEIGHT = 3;
+    private static final int OBSERVED = 0, PEAK = 1, BIN_BL = 2, BIN_DONUT = 3, BIN_H = 4, BIN_V = 5;
+    private static final int EXPECTED_BL = 6, EXPECTED_DONUT = 7, EXPECTED_H = 8, EXPECTED_V = 9;
+
+    public static void test() throws IOException {
+        Random random = new Random(5);
+        int[][] shapes = {{24, 31}, {31, 24}};
+        int numPeaks = 0;
+        for (int[] shape : shapes) {
+            int numRows = shape[0], numColumns = shape[1];
+            int offset = 3, stride = numColumns + 4;
+            float[][] outputs = randomOutputs(random, offset + numRows * stride + 2, 50);
+            for (int relativeDiagonal = -numRows - 2; relativeDiagonal <= numColumns + 1; relativeDiagonal++) {
+                String sweep = numRows + " x " + numColumns + ", relative diagonal " + relativeDiagonal;
+                checkHistograms(sweep, outputs, numRows, numColumns, offset, stride, relativeDiagonal);
+                numPeaks += checkPeaks(sweep, outputs, numRows, numColumns, offset, stride, relativeDiagonal);
+            }
+        }
+        System.out.println("Fused sweeps agree with the old passes at every relative diagonal (" + numPeaks
+                + " peaks)");
+    }
+
+    /**
+     * The 1st pass has to count the same pixels as the old passes, without writing to the outputs: the old passes
+     * NaN-ed the bins, but the fused sweep just skips those pixels
+     */
+    private static void checkHistograms(String sweep, float[][] outputs, int numRows, int numColumns, int offset,
+                                        int stride, int relativeDiagonal) {
+        float[][] expected = copy(outputs);
+        HiCCUPSHistograms expectedHistograms = new HiCCUPSHistograms(W1, W2);
+        OldSweeps.cleanUpBinNaNs(expected, numRows, numColumns, offset, stride);
+        OldSweeps.cleanUpDiagonal(expected, new int[]{BIN_BL, BIN_DONUT, BIN_H, BIN_V}, relativeDiagonal,
+                numRows, numColumns, offset, stride);
+        OldSweeps.updateHistograms(expected, expectedHistograms, WEIGHT, numRows, numColumns, offset, stride);
+
+        float[][] actual = copy(outputs);
+        HiCCUPSHistograms actualHistograms = new HiCCUPSHistograms(W1, W2);
+        container(actual, numRows, numColumns, offset, stride)
+                .updateHistograms(actualHistograms, relativeDiagonal, W1, W2, WEIGHT);
+
+        if (!Arrays.deepEquals(expectedHistograms.getBL(), actualHistograms.getBL())
+                || !Arrays.deepEquals(expectedHistograms.getDonut(), actualHistograms.getDonut())
+                || !Arrays.deepEquals(expectedHistograms.getH(), actualHistograms.getH())
+                || !Arrays.deepEquals(expectedHistograms.getV(), actualHistograms.getV())) {
+            throw new IllegalStateException(sweep + ": histograms differ from the old passes");
+        }
+        checkOutputs(sweep + ", 1st pass", outputs, actual);
+    }
+
+    /**
+     * The 2nd pass has to extract the same peaks and leave the same cleaned peak values as the old passes, and
+     * without a table (the targeted run) it still has to clean the peak values, which are read later
+     */
+    private static int checkPeaks(String sweep, float[][] outputs, int numRows, int numColumns, int offset,
+                                  int stride, int relativeDiagonal) throws IOException {
+        float[][] expected = copy(outputs);
+        EnrichedPixelTable expectedPeaks = new EnrichedPixelTable(1000);
+        OldSweeps.cleanUpPeakNaNs(expected, numRows, numColumns, offset, stride);
+        OldSweeps.cleanUpDiagonal(expected, new int[]{PEAK}, relativeDiagonal, numRows, numColumns, offset, stride);
+        OldSweeps.extractPeaks(expected, expectedPeaks, numRows, numColumns, offset, stride);
+
+        float[][] actual = copy(outputs);
+        EnrichedPixelTable actualPeaks = new EnrichedPixelTable(1000);
+        container(actual, numRows, numColumns, offset, stride)
+                .extractPeaks(relativeDiagonal, actualPeaks, 1, "1", W1, W2, 100, 120);
+
+        if (!Arrays.equals(serialize(expectedPeaks), serialize(actualPeaks))) {
+            throw new IllegalStateException(sweep + ": " + actualPeaks.size() + " peaks extracted instead of "
+                    + expectedPeaks.size() + ", or with different values");
+        }
+        checkOutputs(sweep + ", 2nd pass", expected, actual);
+
+        float[][] targeted = copy(outputs);
+        container(targeted, numRows, numColumns, offset, stride)
+                .extractPeaks(relativeDiagonal, null, 1, "1", W1, W2, 100, 120);
+        checkOutputs(sweep + ", 2nd pass without a table", expected, targeted);
+
+        return actualPeaks.size();
+    }
+
+    /**
+     * Whole arrays are compared, so writes into the padding before, between and after the rows are caught too
+     */
+    private static void checkOutputs(String sweep, float[][] expected, float[][] actual) {
+        for (int k = 0; k < expected.length; k++) {
+            if (!Arrays.equals(expected[k], actual[k])) {
+                throw new IllegalStateException(sweep + ": output array " + k + " differs from the old passes");
+            }
+        }
+    }
+
+    private static float[][] randomOutputs(Random random, int size, int maxObserved) {
+        float[][] outputs = new float[10][size];
+        for (int k = 0; k < size; k++) {
+            outputs[OBSERVED][k] = random.nextDouble() < 0.05 ? Float.NaN
+                    : random.nextDouble() < 0.02 ? Float.POSITIVE_INFINITY : random.nextInt(maxObserved);
+            outputs[PEAK][k] = random.nextDouble() < 0.05 ? Float.NaN : (float) (random.nextGaussian() * 5);
+            for (int b = BIN_BL; b <= BIN_V; b++) {
+                outputs[b][k] = random.nextDouble() < 0.03 ? Float.NaN
+                        : random.nextDouble() < 0.01 ? W1 + 5 : random.nextInt(W1);
+            }
+            for (int e = EXPECTED_BL; e <= EXPECTED_V; e++) {
+                outputs[e][k] = random.nextDouble() < 0.03 ? Float.NaN : random.nextFloat() * 10;
+            }
+        }
+        return outputs;
+    }
+
+    private static float[][] copy(float[][] outputs) {
+        float[][] copy = new float[outputs.length][];
+        for (int k = 0; k < outputs.length; k++) {
+            copy[k] = outputs[k].clone();
+        }
+        return copy;
+    }
+
+    private static GPUOutputContainer container(float[][] outputs, int numRows, int numColumns, int offset, int stride) {
+        return new GPUOutputContainer(numRows, numColumns, offset, stride, outputs[OBSERVED], outputs[PEAK],
+                outputs[BIN_BL], outputs[BIN_DONUT], outputs[BIN_H], outputs[BIN_V],
+                outputs[EXPECTED_BL], outputs[EXPECTED_DONUT], outputs[EXPECTED_H], outputs[EXPECTED_V]);
+    }
+
+    private static byte[] serialize(EnrichedPixelTable table) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        table.write(new DataOutputStream(bytes));
+        return bytes.toByteArray();
+    }
+
+    /**
+     * The separate passes over the outputs from before the sweeps were fused, kept as the reference
+     */
+    private static class OldSweeps {
+
+        static void cleanUpBinNaNs(float[][] outputs, int numRows, int numColumns, int offset, int stride) {
+            for (int i = 0; i < numRows; i++) {
+                int index = offset + i * stride;
+                for (int j = 0; j < numColumns; j++, index++) {
+                    if (hasNaNExpected(outputs, index)) {
+                        for (int b = BIN_BL; b <= BIN_V; b++) {
+                            outputs[b][index] = Float.NaN;
+                        }
+                    }
+                }
+            }
+        }
+
+        static void cleanUpPeakNaNs(float[][] outputs, int numRows, int numColumns, int offset, int stride) {
+            for (int i = 0; i < numRows; i++) {
+                int index = offset + i * stride;
+                for (int j = 0; j < numColumns; j++, index++) {
+                    if (hasNaNExpected(outputs, index)) {
+                        outputs[PEAK][index] = Float.NaN;
+                    }
+                }
+            }
+        }
+
+        static void cleanUpDiagonal(float[][] outputs, int[] arrays, int relativeDiagonal,
+                                    int numRows, int numColumns, int offset, int stride) {
+            if (relativeDiagonal >= (-1 * numRows)) {
+                for (int i = 0; i < numRows; i++) {
+                    int index = offset + i * stride;
+                    for (int j = 0; j < numColumns; j++, index++) {
+                        if (j - i <= relativeDiagonal) {
+                            for (int array : arrays) {
+                                outputs[array][index] = Float.NaN;
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        static void updateHistograms(float[][] outputs, HiCCUPSHistograms histograms, long weight,
+                                     int numRows, int numColumns, int offset, int stride) {
+            long[][][] hists = {histograms.getBL(), histograms.getDonut(), histograms.getH(), histograms.getV()};
+            for (int i = 0; i < numRows; i++) {
+                int index = offset + i * stride;
+                for (int j = 0; j < numColumns; j++, index++) {
+                    if (Float.isNaN(outputs[OBSERVED][index]) || Float.isInfinite(outputs[OBSERVED][index]))
+                        continue;
+
+                    int val = (int) outputs[OBSERVED][index];
+                    for (int b = BIN_BL; b <= BIN_V; b++) {
+                        float bin = outputs[b][index];
+                        if (!Float.isNaN(bin) && (int) bin >= 0 && (int) bin < W1 && val >= 0 && val < W2) {
+                            hists[b - BIN_BL][(int) bin][val] += weight;
+                        }
+                    }
+                }
+            }
+        }
+
+        static void extractPeaks(float[][] outputs, EnrichedPixelTable peaks,
+                                 int numRows, int numColumns, int offset, int stride) {
+            int resolution = peaks.getResolution();
+            for (int i = 0; i < numRows; i++) {
+                int index = offset + i * stride;
+                for (int j = 0; j < numColumns; j++, index++) {
+                    float peakVal = outputs[PEAK][index];
+                    if (Float.isNaN(peakVal) || peakVal <= 0 || Float.isNaN(outputs[OBSERVED][index])
+                            || hasNaNExpected(outputs, index))
+                        continue;
+
+                    boolean inRange = outputs[OBSERVED][index] < W2;
+                    for (int b = BIN_BL; b <= BIN_V; b++) {
+                        inRange &= !Float.isNaN(outputs[b][index]) && outputs[b][index] < W1;
+                    }
+                    if (inRange) {
+                        peaks.add(1, "1", (i + 100) * resolution, (j + 120) * resolution,
+                                outputs[OBSERVED][index], peakVal,
+                                outputs[EXPECTED_BL][index], outputs[EXPECTED_DONUT][index],
+                                outputs[EXPECTED_H][index], outputs[EXPECTED_V][index],
+                                outputs[BIN_BL][index], outputs[BIN_DONUT][index],
+                                outputs[BIN_H][index], outputs[BIN_V][index]);
+                    }
+                }
+            }
+        }
+
+        private static boolean hasNaNExpected(float[][] outputs, int index) {
+            return Float.isNaN(outputs[EXPECTED_BL][index]) || Float.isNaN(outputs[EXPECTED_DONUT][index])
+                    || Float.isNaN(outputs[EXPECTED_H][index]) || Float.isNaN(outputs[EXPECTED_V][index]);
+        }
+    }
+}
@@ -0,0 +1,41 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011-2021 Broad Institute, Aiden Lab, Rice University, Baylor College of Medicine
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+
+package juicebox.tools.utils.juicer.hiccups;
+
+/**
+ * Computes the HiCCUPS kernel outputs for one region: the expected value and lambda bin of each mask, the observed
+ * value and the peak value (observed minus the largest threshold of its bins) of every pixel in the central part
+ * of the region.
+ * <p/>
+ * Backends are created per worker thread through HiCCUPSComputeBackends, so an implementation does not have to be
+ * thread safe. The returned container may be a view of buffers owned by the backend, i.e. it is only valid until
+ * the next call to process.
+ */
+public interface HiCCUPSComputeBackend {
+
+    GPUOutputContainer process(HiCCUPSRegionData regionData,
+                               float[] thresholdBL, float[] thresholdDonut, float[] thresholdH, float[] thresholdV);
+}
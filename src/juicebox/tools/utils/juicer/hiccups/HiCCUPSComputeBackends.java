@@ -0,0 +1,96 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011-2021 Broad Institute, Aiden Lab, Rice University, Baylor College of Medicine
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+
+package juicebox.tools.utils.juicer.hiccups;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Registry of the HiCCUPS compute backends, selectable by name (hiccups --backend <name>)
+ * <p/>
+ * > gpu: the CUDA kernel (needs JCuda and its native libraries)
+ * <p/>
+ * > java: pure Java summed-area version of the kernel; runs anywhere. It is scalar code: regions are spread across
+ * the HiCCUPS worker threads, and a region's rows are only split across a pool when there are fewer regions than
+ * threads (see HiCCUPSSummedAreaEngine for why the inner loops are not vectorized)
+ * <p/>
+ * Other backends can be added with register before HiCCUPS runs.
+ */
+public class HiCCUPSComputeBackends {
+
+    public static final String GPU = "gpu";
+    public static final String JAVA = "java";
+
+    private static final Map<String, Factory> factories = new LinkedHashMap<>();
+
+    static {
+        // lambdas so that the JCuda classes are only touched when the gpu backend is actually created
+        register(GPU, (window, matrixSize, peakWidth, maxDistance, peaksOnly, rowPool) ->
+                new GPUController(window, matrixSize, peakWidth, maxDistance));
+        register(JAVA, (window, matrixSize, peakWidth, maxDistance, peaksOnly, rowPool) ->
+                new HiCCUPSSummedAreaEngine(window, matrixSize, peakWidth, maxDistance, peaksOnly, rowPool));
+    }
+
+    public static synchronized void register(String name, Factory factory) {
+        factories.put(name.toLowerCase(), factory);
+    }
+
+    public static synchronized boolean isRegistered(String name) {
+        return name != null && factories.containsKey(name.toLowerCase());
+    }
+
+    public static synchronized List<String> getNames() {
+        return new ArrayList<>(factories.keySet());
+    }
+
+    /**
+     * @param maxDistance farthest distance from the diagonal (in bins) to evaluate, or negative for no limit
+     * @param peaksOnly   only the peaks (pixels with a positive peak value) will be used, so a backend may leave
+     *                    all outputs of any other pixel NaN
+     * @param rowPool     pool a backend may use to split a single region across threads, or null to process each
+     *                    region on the calling thread only
+     */
+    public static HiCCUPSComputeBackend create(String name, int window, int matrixSize, int peakWidth,
+                                               int maxDistance, boolean peaksOnly, ForkJoinPool rowPool)
+            throws Exception {
+        Factory factory;
+        synchronized (HiCCUPSComputeBackends.class) {
+            factory = factories.get(name.toLowerCase());
+        }
+        if (factory == null) {
+            throw new IllegalArgumentException("Unknown HiCCUPS backend " + name + "; available: " + getNames());
+        }
+        return factory.create(window, matrixSize, peakWidth, maxDistance, peaksOnly, rowPool);
+    }
+
+    public interface Factory {
+        HiCCUPSComputeBackend create(int window, int matrixSize, int peakWidth, int maxDistance, boolean peaksOnly,
+                                     ForkJoinPool rowPool) throws Exception;
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011-2021 Broad Institute, Aiden Lab, Rice University, Baylor College of Medicine
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package juicebox.tools.utils.juicer.hiccups;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Lambda-bin x observed histograms for the bottom left, donut, horizontal and vertical masks.
+ * <p/>
+ * Each HiCCUPS worker fills its own shard during the first pass; shards are summed
+ * once all workers are done, so no locking is needed while regions are being processed.
+ */
+public class HiCCUPSHistograms {
+
+    private final long[][] histBL;
+    private final long[][] histDonut;
+    private final long[][] histH;
+    private final long[][] histV;
+
+    public HiCCUPSHistograms(int numRows, int numColumns) {
+        histBL = new long[numRows][numColumns];
+        histDonut = new long[numRows][numColumns];
+        histH = new long[numRows][numColumns];
+        histV = new long[numRows][numColumns];
+    }
+
+    /**
+     * Sum the shards in index order (null shards, i.e. workers that never ran, are skipped)
+     */
+    public static HiCCUPSHistograms merge(HiCCUPSHistograms[] shards, int numRows, int numColumns) {
+        HiCCUPSHistograms merged = new HiCCUPSHistograms(numRows, numColumns);
+        for (HiCCUPSHistograms shard : shards) {
+            if (shard != null) {
+                merged.add(shard);
+            }
+        }
+        return merged;
+    }
+
+    public void add(HiCCUPSHistograms other) {
+        addTo(histBL, other.histBL);
+        addTo(histDonut, other.histDonut);
+        addTo(histH, other.histH);
+        addTo(histV, other.histV);
+    }
+
+    /**
+     * Count pixels with observed 0 in lambda bin 0 for every mask, e.g. for regions with no contacts that were skipped
+     */
+    public void addEmptyPixels(long numPixels) {
+        histBL[0][0] += numPixels;
+        histDonut[0][0] += numPixels;
+        histH[0][0] += numPixels;
+        histV[0][0] += numPixels;
+    }
+
+    public void write(DataOutputStream out) throws IOException {
+        out.writeInt(histBL.length);
+        out.writeInt(histBL.length > 0 ? histBL[0].length : 0);
+        for (long[][] histogram : new long[][][]{histBL, histDonut, histH, histV}) {
+            for (long[] row : histogram) {
+                for (long count : row) {
+                    out.writeLong(count);
+                }
+            }
+        }
+    }
+
+    public static HiCCUPSHistograms read(DataInputStream in) throws IOException {
+        HiCCUPSHistograms histograms = new HiCCUPSHistograms(in.readInt(), in.readInt());
+        for (long[][] histogram : new long[][][]{histograms.histBL, histograms.histDonut, histograms.histH,
+                histograms.histV}) {
+            for (long[] row : histogram) {
+                for (int j = 0; j < row.length; j++) {
+                    row[j] = in.readLong();
+                }
+            }
+        }
+        return histograms;
+    }
+
+    private static void addTo(long[][] destination, long[][] source) {
+        for (int i = 0; i < destination.length; i++) {
+            for (int j = 0; j < destination[i].length; j++) {
+                destination[i][j] += source[i][j];
+            }
+        }
+    }
+
+    public long[][] getBL() {
+        return histBL;
+    }
+
+    public long[][] getDonut() {
+        return histDonut;
+    }
+
+    public long[][] getH() {
+        return histH;
+    }
+
+    public long[][] getV() {
+        return histV;
+    }
+}
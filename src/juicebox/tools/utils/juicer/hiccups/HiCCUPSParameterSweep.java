@@ -0,0 +1,110 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011-2021 Broad Institute, Aiden Lab, Rice University, Baylor College of Medicine
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+
+package juicebox.tools.utils.juicer.hiccups;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Grid of (peak width, window) pairs for a HiCCUPS parameter sweep, optionally with an fdr per pair.
+ * <p/>
+ * Given as peak:window[:fdr] entries separated by commas (e.g. 1:3,2:5,2:6:0.05); the fdr is given as for -f and
+ * defaults to the one of the resolution. Each pair is run against the same regions, and its results are saved to
+ * its own subdirectory of the output directory (see getLabel).
+ */
+public class HiCCUPSParameterSweep {
+
+    private final int[] peakWidths, windowWidths;
+    private final double[] fdrThresholds; // NaN keeps the fdr of the resolution
+    private final String[] labels;
+
+    private HiCCUPSParameterSweep(int[] peakWidths, int[] windowWidths, double[] fdrThresholds, String[] labels) {
+        this.peakWidths = peakWidths;
+        this.windowWidths = windowWidths;
+        this.fdrThresholds = fdrThresholds;
+        this.labels = labels;
+    }
+
+    /**
+     * @return null if the grid is empty or any entry is malformed or invalid (window must exceed the peak width)
+     */
+    public static HiCCUPSParameterSweep parse(String grid) {
+        if (grid == null) return null;
+        List<String> entries = new ArrayList<>();
+        for (String entry : grid.split(",")) {
+            if (entry.trim().length() > 0) {
+                entries.add(entry.trim());
+            }
+        }
+        int n = entries.size();
+        if (n == 0) return null;
+
+        int[] peakWidths = new int[n];
+        int[] windowWidths = new int[n];
+        double[] fdrThresholds = new double[n];
+        String[] labels = new String[n];
+        try {
+            for (int k = 0; k < n; k++) {
+                String[] values = entries.get(k).split(":");
+                if (values.length < 2 || values.length > 3) return null;
+                peakWidths[k] = Integer.parseInt(values[0]);
+                windowWidths[k] = Integer.parseInt(values[1]);
+                if (peakWidths[k] <= 0 || windowWidths[k] <= peakWidths[k]) return null;
+                labels[k] = "sweep_p" + peakWidths[k] + "_w" + windowWidths[k];
+                fdrThresholds[k] = Double.NaN;
+                if (values.length == 3) {
+                    double fdr = Double.parseDouble(values[2]);
+                    if (!(fdr > 0)) return null;
+                    fdrThresholds[k] = 1 / fdr;
+                    labels[k] += "_f" + values[2];
+                }
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return new HiCCUPSParameterSweep(peakWidths, windowWidths, fdrThresholds, labels);
+    }
+
+    public int size() {
+        return peakWidths.length;
+    }
+
+    /**
+     * @return configuration of the given resolution with the peak width, window (and fdr) of the given pair
+     */
+    public HiCCUPSConfiguration getConfiguration(HiCCUPSConfiguration conf, int index) {
+        double fdrThreshold = Double.isNaN(fdrThresholds[index]) ? conf.getFDRThreshold() : fdrThresholds[index];
+        return new HiCCUPSConfiguration(conf.getResolution(), fdrThreshold, peakWidths[index], windowWidths[index],
+                conf.getClusterRadius());
+    }
+
+    /**
+     * @return name of the subdirectory holding the results of the given pair, e.g. sweep_p2_w5
+     */
+    public String getLabel(int index) {
+        return labels[index];
+    }
+}
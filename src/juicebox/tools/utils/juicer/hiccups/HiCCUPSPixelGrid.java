@@ -0,0 +1,117 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011-2021 Broad Institute, Aiden Lab, Rice University, Baylor College of Medicine
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+
+package juicebox.tools.utils.juicer.hiccups;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Buckets pixels (identified by their rank) into square cells so that centroid clustering only has to look at the
+ * pixels near the current centroid rather than scanning every remaining pixel.
+ */
+class HiCCUPSPixelGrid {
+
+    private final int cellSize;
+    private final int[] x;
+    private final int[] y;
+    private final Map<Long, Integer> cellIDs = new HashMap<>();
+    private final int[] cellStarts;
+    private final int[] members;
+
+    /**
+     * @param x        first position of the pixel with rank i
+     * @param y        second position of the pixel with rank i
+     * @param cellSize width of the cells (same units as positions)
+     */
+    HiCCUPSPixelGrid(int[] x, int[] y, int cellSize) {
+        this.cellSize = Math.max(cellSize, 1);
+        this.x = x;
+        this.y = y;
+
+        int[] cellOfPixel = new int[x.length];
+        int[] counts = new int[x.length];
+        for (int rank = 0; rank < x.length; rank++) {
+            long key = getKey(x[rank] / this.cellSize, y[rank] / this.cellSize);
+            Integer cellID = cellIDs.get(key);
+            if (cellID == null) {
+                cellID = cellIDs.size();
+                cellIDs.put(key, cellID);
+            }
+            cellOfPixel[rank] = cellID;
+            counts[cellID]++;
+        }
+
+        cellStarts = new int[cellIDs.size() + 1];
+        for (int c = 0; c < cellIDs.size(); c++) {
+            cellStarts[c + 1] = cellStarts[c] + counts[c];
+        }
+
+        // filled in rank order, so each cell's members are sorted by rank
+        members = new int[x.length];
+        int[] next = Arrays.copyOf(cellStarts, cellIDs.size());
+        for (int rank = 0; rank < x.length; rank++) {
+            members[next[cellOfPixel[rank]]++] = rank;
+        }
+    }
+
+    private static long getKey(long cellX, long cellY) {
+        return (cellX << 32) | (cellY & 0xffffffffL);
+    }
+
+    /**
+     * @return lowest rank after afterRank that is not yet clustered and lies within radius of (centerX, centerY),
+     * or -1 if there is none
+     */
+    int nextWithinRadius(double centerX, double centerY, double radius, int afterRank, boolean[] clustered) {
+        int best = -1;
+        long cellX1 = (long) Math.floor((centerX - radius) / cellSize);
+        long cellX2 = (long) Math.floor((centerX + radius) / cellSize);
+        long cellY1 = (long) Math.floor((centerY - radius) / cellSize);
+        long cellY2 = (long) Math.floor((centerY + radius) / cellSize);
+
+        for (long cellX = Math.max(cellX1, 0); cellX <= cellX2; cellX++) {
+            for (long cellY = Math.max(cellY1, 0); cellY <= cellY2; cellY++) {
+                Integer cellID = cellIDs.get(getKey(cellX, cellY));
+                if (cellID == null) continue;
+
+                int end = cellStarts[cellID + 1];
+                int start = Arrays.binarySearch(members, cellStarts[cellID], end, afterRank + 1);
+                if (start < 0) start = -start - 1;
+
+                for (int k = start; k < end; k++) {
+                    int rank = members[k];
+                    if (best >= 0 && rank >= best) break;
+                    if (!clustered[rank] && HiCCUPSUtils.hypotenuse(centerX - x[rank], centerY - y[rank]) <= radius) {
+                        best = rank;
+                        break;
+                    }
+                }
+            }
+        }
+        return best;
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011-2021 Broad Institute, Aiden Lab, Rice University, Baylor College of Medicine
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+
+package juicebox.tools.utils.juicer.hiccups;
+
+/**
+ * Manual check (like GPUTesting, not run by the build) that the pixel grid gives the same next cluster member as the
+ * linear scan over the remaining pixels that clustering used before. The cases that depend on the cell bookkeeping
+ * are checked by hand, then every query on a small lattice is compared with the scan.
+ */
+class HiCCUPSPixelGridTesting {
+
+    private static final int RESOLUTION = 5000, CELL_SIZE = 20000, LATTICE = 14;
+
+    public static void test() {
+        checkEdgeCases();
+        int numQueries = checkLattice();
+        System.out.println("Pixel grid agrees with the linear scan on the edge cases and " + numQueries
+                + " lattice queries");
+    }
+
+    private static void checkEdgeCases() {
+        // 30000-40000-50000 triangle, so the distance is exact
+        int[] x = {0, 30000};
+        int[] y = {0, 40000};
+        check("pixel at the radius", x, y, 0, 0, 50000, 0, null, 1);
+        check("pixel just past the radius", x, y, 0, 0, 49999, 0, null, -1);
+
+        // the search window starts at negative cells, which hold no pixels
+        check("centroid near 0", new int[]{0}, new int[]{20000}, 1000, 1000, 30000, -1, null, 0);
+
+        // the window covers 31 x 31 cells, only one of which is filled
+        check("radius much larger than a cell", new int[]{0, 400000}, new int[]{0, 400000}, 0, 0, 600000, 0,
+                null, 1);
+
+        int[] same = {100000, 100000, 100000};
+        check("next rank in the same cell", same, same, 100000, 100000, 0, 0, null, 1);
+        check("no rank after the last", same, same, 100000, 100000, 0, 2, null, -1);
+        check("clustered pixel skipped", same, same, 100000, 100000, 0, 0, new boolean[]{false, true, false}, 2);
+        check("all clustered", same, same, 100000, 100000, 0, -1, new boolean[]{true, true, true}, -1);
+
+        // rank 1 sits in the centroid's cell and is visited first, but rank 0 in the next cell over has to win
+        int[] lowX = {60000, 0, 5000};
+        int[] lowY = {0, 0, 0};
+        check("lowest rank across cells", lowX, lowY, 0, 0, 60000, -1, null, 0);
+        check("lowest rank after afterRank", lowX, lowY, 0, 0, 60000, 0, null, 1);
+        check("lowest unclustered rank", lowX, lowY, 0, 0, 60000, -1, new boolean[]{false, true, false}, 0);
+    }
+
+    private static void check(String name, int[] x, int[] y, double centerX, double centerY, double radius,
+                              int afterRank, boolean[] clustered, int expected) {
+        if (clustered == null) clustered = new boolean[x.length];
+        int scanned = nextWithinRadius(x, y, centerX, centerY, radius, afterRank, clustered);
+        int actual = new HiCCUPSPixelGrid(x, y, CELL_SIZE).nextWithinRadius(centerX, centerY, radius, afterRank,
+                clustered);
+        if (scanned != expected || actual != expected) {
+            throw new IllegalStateException(name + ": grid gave " + actual + " and the scan " + scanned
+                    + " instead of " + expected);
+        }
+    }
+
+    /**
+     * Every upper triangle pixel of a LATTICE x LATTICE bin lattice, ranked in a scrambled order and with every third
+     * rank clustered, queried at every lattice point and every bin midpoint, for radii below, at and above the cell
+     * size and every afterRank
+     */
+    private static int checkLattice() {
+        int n = LATTICE * (LATTICE + 1) / 2;
+        int[] x = new int[n];
+        int[] y = new int[n];
+        boolean[] clustered = new boolean[n];
+        int rank = 0;
+        for (int i = 0; i < LATTICE; i++) {
+            for (int j = i; j < LATTICE; j++) {
+                int scrambled = (rank * 37) % n;
+                x[scrambled] = i * RESOLUTION;
+                y[scrambled] = j * RESOLUTION;
+                clustered[scrambled] = scrambled % 3 == 2;
+                rank++;
+            }
+        }
+        HiCCUPSPixelGrid grid = new HiCCUPSPixelGrid(x, y, CELL_SIZE);
+        double[] radii = {0, RESOLUTION, CELL_SIZE - 1, CELL_SIZE, CELL_SIZE + RESOLUTION / 2.0, 3 * CELL_SIZE};
+
+        int numQueries = 0;
+        for (int i = 0; i < 2 * LATTICE; i++) {
+            for (int j = 0; j < 2 * LATTICE; j++) {
+                double centerX = i * RESOLUTION / 2.0;
+                double centerY = j * RESOLUTION / 2.0;
+                for (double radius : radii) {
+                    for (int afterRank = -1; afterRank < n; afterRank++) {
+                        int expected = nextWithinRadius(x, y, centerX, centerY, radius, afterRank, clustered);
+                        int actual = grid.nextWithinRadius(centerX, centerY, radius, afterRank, clustered);
+                        if (expected != actual) {
+                            throw new IllegalStateException("Query (" + centerX + ", " + centerY + ") radius "
+                                    + radius + " after " + afterRank + ": grid gave " + actual + " instead of "
+                                    + expected);
+                        }
+                        numQueries++;
+                    }
+                }
+            }
+        }
+        return numQueries;
+    }
+
+    /**
+     * The scan over the remaining pixels in rank order that clustering used before the grid
+     */
+    private static int nextWithinRadius(int[] x, int[] y, double centerX, double centerY, double radius,
+                                        int afterRank, boolean[] clustered) {
+        for (int rank = afterRank + 1; rank < x.length; rank++) {
+            if (!clustered[rank] && HiCCUPSUtils.hypotenuse(centerX - x[rank], centerY - y[rank]) <= radius) {
+                return rank;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011-2021 Broad Institute, Aiden Lab, Rice University, Baylor College of Medicine
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package juicebox.tools.utils.juicer.hiccups;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Keeps the kernel outputs of each region from the first HiCCUPS pass (observed, expected and bin values,
+ * deflate compressed) so that the second pass only has to apply the new thresholds instead of re-reading the
+ * .hic file and re-running the kernel.
+ * <p/>
+ * Regions are held in memory up to the given budget; anything beyond that is spilled to a temporary file
+ * in the spill directory, which is removed when the cache is closed.
+ */
+public class HiCCUPSRegionCache implements Closeable {
+
+    private final AtomicReferenceArray<CachedRegion> regions;
+    private final AtomicLong bytesInMemory = new AtomicLong(0);
+    private final AtomicLong spillPosition = new AtomicLong(0);
+    private final long memoryBudget;
+    private final File spillDirectory;
+    private File spillFile = null;
+    private FileChannel spillChannel = null;
+
+    public HiCCUPSRegionCache(int numRegions, long memoryBudget, File spillDirectory) {
+        regions = new AtomicReferenceArray<>(numRegions);
+        this.memoryBudget = memoryBudget;
+        this.spillDirectory = spillDirectory;
+    }
+
+    public void store(int regionIndex, GPUOutputContainer container) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new DeflaterOutputStream(bytes)))) {
+            container.writeKernelOutputs(out);
+        }
+        byte[] data = bytes.toByteArray();
+
+        if (bytesInMemory.addAndGet(data.length) <= memoryBudget) {
+            regions.set(regionIndex, new CachedRegion(data, -1, data.length));
+        } else {
+            bytesInMemory.addAndGet(-data.length);
+            long position = spillPosition.getAndAdd(data.length);
+            FileChannel channel = getSpillChannel();
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            long offset = position;
+            while (buffer.hasRemaining()) {
+                offset += channel.write(buffer, offset);
+            }
+            regions.set(regionIndex, new CachedRegion(null, position, data.length));
+        }
+    }
+
+    /**
+     * @return cached kernel outputs (peak values not yet set), or null if the region was never stored
+     */
+    public GPUOutputContainer load(int regionIndex) throws IOException {
+        CachedRegion region = regions.get(regionIndex);
+        if (region == null) return null;
+
+        byte[] data = region.data;
+        if (data == null) {
+            ByteBuffer buffer = ByteBuffer.allocate(region.length);
+            long offset = region.offset;
+            while (buffer.hasRemaining()) {
+                int numRead = getSpillChannel().read(buffer, offset);
+                if (numRead < 0) throw new EOFException("HiCCUPS region cache truncated");
+                offset += numRead;
+            }
+            data = buffer.array();
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new InflaterInputStream(new ByteArrayInputStream(data))))) {
+            return GPUOutputContainer.readKernelOutputs(in);
+        }
+    }
+
+    private synchronized FileChannel getSpillChannel() throws IOException {
+        if (spillChannel == null) {
+            spillFile = File.createTempFile("hiccups_region_cache", ".bin", spillDirectory);
+            spillFile.deleteOnExit();
+            spillChannel = FileChannel.open(spillFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+        return spillChannel;
+    }
+
+    public long getBytesInMemory() {
+        return bytesInMemory.get();
+    }
+
+    public long getBytesSpilled() {
+        return spillPosition.get();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (spillChannel != null) {
+            spillChannel.close();
+            spillChannel = null;
+        }
+        if (spillFile != null && spillFile.exists() && !spillFile.delete()) {
+            System.err.println("Unable to delete " + spillFile.getAbsolutePath());
+        }
+    }
+
+    private static class CachedRegion {
+        private final byte[] data;
+        private final long offset;
+        private final int length;
+
+        CachedRegion(byte[] data, long offset, int length) {
+            this.data = data;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+}
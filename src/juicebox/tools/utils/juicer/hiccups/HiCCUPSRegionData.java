@@ -0,0 +1,92 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011-2021 Broad Institute, Aiden Lab, Rice University, Baylor College of Medicine
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+
+package juicebox.tools.utils.juicer.hiccups;
+
+/**
+ * Everything the kernel needs for one region, read ahead of time so that the compute threads never wait on the
+ * .hic file. If the region's kernel outputs were cached during the first run, only those are carried.
+ */
+public class HiCCUPSRegionData {
+    private final int regionIndex;
+    private final HiCCUPSRegionContainer regionContainer;
+    private final float[] observed;
+    private final float[] distanceExpected;
+    private final float[] kr1;
+    private final float[] kr2;
+    private final GPUOutputContainer cachedOutputs;
+
+    public HiCCUPSRegionData(int regionIndex, HiCCUPSRegionContainer regionContainer, float[] observed,
+                             float[] distanceExpected, float[] kr1, float[] kr2) {
+        this.regionIndex = regionIndex;
+        this.regionContainer = regionContainer;
+        this.observed = observed;
+        this.distanceExpected = distanceExpected;
+        this.kr1 = kr1;
+        this.kr2 = kr2;
+        this.cachedOutputs = null;
+    }
+
+    public HiCCUPSRegionData(int regionIndex, HiCCUPSRegionContainer regionContainer, GPUOutputContainer cachedOutputs) {
+        this.regionIndex = regionIndex;
+        this.regionContainer = regionContainer;
+        this.observed = null;
+        this.distanceExpected = null;
+        this.kr1 = null;
+        this.kr2 = null;
+        this.cachedOutputs = cachedOutputs;
+    }
+
+    public int getRegionIndex() {
+        return regionIndex;
+    }
+
+    public HiCCUPSRegionContainer getRegionContainer() {
+        return regionContainer;
+    }
+
+    /**
+     * @return observed counts, matrixSize x matrixSize in row-major order
+     */
+    public float[] getObserved() {
+        return observed;
+    }
+
+    public float[] getDistanceExpected() {
+        return distanceExpected;
+    }
+
+    public float[] getKR1() {
+        return kr1;
+    }
+
+    public float[] getKR2() {
+        return kr2;
+    }
+
+    public GPUOutputContainer getCachedOutputs() {
+        return cachedOutputs;
+    }
+}
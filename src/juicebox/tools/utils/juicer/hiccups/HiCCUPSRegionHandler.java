@@ -30,16 +30,25 @@ import javastraw.reader.basics.Chromosome;
 import javastraw.reader.basics.ChromosomeHandler;
 import javastraw.reader.mzd.MatrixZoomData;
 import javastraw.reader.norm.NormalizationVector;
+import javastraw.feature2D.Feature2D;
 import javastraw.reader.type.HiCZoom;
+import javastraw.reader.type.NormalizationHandler;
 import javastraw.reader.type.NormalizationType;
 import javastraw.tools.HiCFileTools;
 import juicebox.HiCGlobals;
+import juicebox.data.Feature2DHandler;
+import juicebox.tools.utils.common.ArrayTools;
+import juicebox.tools.utils.common.MatrixTools;
+import org.apache.commons.math3.linear.RealMatrix;
 import org.broad.igv.util.Pair;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
 
 public class HiCCUPSRegionHandler {
 
@@ -47,9 +56,29 @@ public class HiCCUPSRegionHandler {
     final Map<Pair<Integer, HiCZoom>, MatrixZoomData> zoomDataMap = new HashMap<>();
     final Map<Pair<Integer, HiCZoom>, double[]> normVectorMap = new HashMap<>();
     final Map<Pair<Integer, HiCZoom>, double[]> expectedVectorMap = new HashMap<>();
+    final Map<Pair<Integer, HiCZoom>, float[]> floatExpectedVectorMap = new HashMap<>();
+    private long numEmptyPixelsSkipped = 0;
+
+    // raw contact prefix sums at the coarsest zoom, per chromosome; filled by removeEmptyRegions
+    private HiCZoom coarseZoom = null;
+    private final Map<Integer, double[][]> coarseContactSums = new HashMap<>();
 
     public HiCCUPSRegionHandler(Dataset ds, ChromosomeHandler chromosomeHandler, HiCZoom zoom, NormalizationType norm,
-                                HiCCUPSConfiguration conf, int regionWidth, int regionMargin, boolean restrictSearchRegions) {
+                                HiCCUPSConfiguration conf, int regionWidth, int regionMargin, int maxLoopDistance) {
+        this(ds, chromosomeHandler, zoom, norm, conf, regionWidth, regionMargin, maxLoopDistance, null);
+    }
+
+    /**
+     * @param maxLoopDistance if positive, only the band of each chromosome within this distance (in bp) of the
+     *                        diagonal is tiled: every row of regions stops at the first region past the band, and
+     *                        that region is cut down to the band (see clipToBand)
+     * @param targetFeatures  if given, only the regions that could contain one of these features are created
+     *                        (the same regions a full run would have used for them), instead of tiling whole chromosomes
+     */
+    public HiCCUPSRegionHandler(Dataset ds, ChromosomeHandler chromosomeHandler, HiCZoom zoom, NormalizationType norm,
+                                HiCCUPSConfiguration conf, int regionWidth, int regionMargin, int maxLoopDistance,
+                                Feature2DHandler targetFeatures) {
+        int maxDistance = maxLoopDistance > 0 ? maxLoopDistance / conf.getResolution() : -1;
 
         for (final Chromosome chromosome : chromosomeHandler.getChromosomeArrayWithoutAllByAll()) {
 
@@ -73,6 +102,9 @@ public class HiCCUPSRegionHandler {
                 final double[] expectedVector = HiCFileTools.extractChromosomeExpectedVector(ds, chromosome.getIndex(),
                         zoom, norm, true).getValues().get(0);
                 expectedVectorMap.put(pairKey, expectedVector);
+                // every region of the chromosome hands the whole vector to the kernel, so only convert it once
+                floatExpectedVectorMap.put(pairKey,
+                        ArrayTools.copyRangeToFloatArray(expectedVector, 0, expectedVector.length, 0, Float.NaN));
 
                 // need overall bounds for the chromosome
                 int chrMatrixWidth = (int) Math.ceil((double) chromosome.getLength() / conf.getResolution());
@@ -82,16 +114,24 @@ public class HiCCUPSRegionHandler {
                     System.out.println("Time to load chr " + chromosome.getName() + " matrix: " + (load_time - start_time) + "ms");
                 }
 
+                if (targetFeatures != null) {
+                    addTargetedRegions(chromosome, targetFeatures.getFeatures(chromosome.getIndex(), chromosome.getIndex()),
+                            conf, regionWidth, chrMatrixWidth, regionMargin, maxDistance);
+                    continue;
+                }
+
                 for (int i = 0; i < chrWidthInTermsOfMatrixDimension; i++) {
                     final int[] rowBounds = calculateRegionBounds(i, regionWidth, chrMatrixWidth, regionMargin);
 
                     if (rowBounds[4] < chrMatrixWidth - regionMargin) {
                         for (int j = i; j < chrWidthInTermsOfMatrixDimension; j++) {
-                            if (restrictSearchRegions && (j - i) * regionWidth * conf.getResolution() > 8000000) {
-                                continue;
+                            final int[] columnBounds = clipToBand(rowBounds,
+                                    calculateRegionBounds(j, regionWidth, chrMatrixWidth, regionMargin),
+                                    maxDistance, regionMargin);
+                            if (columnBounds == null) {
+                                // the rest of the row is even further from the diagonal
+                                break;
                             }
-
-                            final int[] columnBounds = calculateRegionBounds(j, regionWidth, chrMatrixWidth, regionMargin);
                             if (HiCGlobals.printVerboseComments) {
                                 System.out.print(".");
                             }
@@ -110,6 +150,43 @@ public class HiCCUPSRegionHandler {
         }
     }
 
+    /**
+     * A feature is only reported by the region whose central part contains it entirely, so it is enough to
+     * create the region holding the start of each feature; nearby features share that region
+     */
+    private void addTargetedRegions(Chromosome chromosome, List<Feature2D> features, HiCCUPSConfiguration conf,
+                                    int regionWidth, int chrMatrixWidth, int regionMargin, int maxDistance) {
+        // sorted so the regions are in the same order as when tiling the whole chromosome
+        Set<Long> regionIndices = new TreeSet<>();
+        for (Feature2D feature : features) {
+            int i = getRegionIndex((int) (feature.getStart1() / conf.getResolution()), regionWidth, chrMatrixWidth, regionMargin);
+            int j = getRegionIndex((int) (feature.getStart2() / conf.getResolution()), regionWidth, chrMatrixWidth, regionMargin);
+            if (i < 0 || j < i) continue;
+            regionIndices.add((((long) i) << 32) | j);
+        }
+
+        for (long regionIndex : regionIndices) {
+            final int[] rowBounds = calculateRegionBounds((int) (regionIndex >>> 32), regionWidth, chrMatrixWidth, regionMargin);
+            final int[] columnBounds = clipToBand(rowBounds,
+                    calculateRegionBounds((int) regionIndex, regionWidth, chrMatrixWidth, regionMargin),
+                    maxDistance, regionMargin);
+            if (columnBounds == null) continue;
+            if (rowBounds[4] < chrMatrixWidth - regionMargin && columnBounds[4] < chrMatrixWidth - regionMargin) {
+                allRegionContainers.add(new HiCCUPSRegionContainer(chromosome, rowBounds, columnBounds));
+            }
+        }
+    }
+
+    /**
+     * @return index of the region whose central part holds this bin, or -1 if the bin is in the chromosome margins
+     */
+    private int getRegionIndex(int bin, int regionWidth, int chrMatrixWidth, int regionMargin) {
+        if (bin < regionMargin) return -1;
+        int index = (bin - regionMargin) / regionWidth;
+        int[] bounds = calculateRegionBounds(index, regionWidth, chrMatrixWidth, regionMargin);
+        return bin < bounds[5] ? index : -1;
+    }
+
     private int[] calculateRegionBounds(int index, int regionWidth, int chrMatrixWidth, int regionMargin) {
 
         int bound1R = Math.min(regionMargin + (index * regionWidth), chrMatrixWidth - regionMargin);
@@ -123,6 +200,225 @@ public class HiCCUPSRegionHandler {
         return new int[]{bound1, bound2, diff1, diff2, bound1R, bound2R};
     }
 
+    /**
+     * Limit the central columns of a region to those within maxDistance bins of the diagonal for at least one of its
+     * central rows, so the last region of a banded row only covers what is left of the band
+     *
+     * @param maxDistance band width in bins, or negative for no limit
+     * @return the (possibly narrowed) column bounds, or null if the region is entirely outside the band
+     */
+    private int[] clipToBand(int[] rowBounds, int[] columnBounds, int maxDistance, int regionMargin) {
+        if (maxDistance < 0) return columnBounds;
+
+        // exclusive; the farthest column still in the band is maxDistance past the last central row
+        long bandEnd = (long) rowBounds[5] + maxDistance;
+        if (columnBounds[4] >= bandEnd) return null;
+        if (columnBounds[5] <= bandEnd) return columnBounds;
+
+        int bound2R = (int) bandEnd;
+        return new int[]{columnBounds[0], bound2R + regionMargin, columnBounds[2], regionMargin, columnBounds[4], bound2R};
+    }
+
+    /**
+     * Drop regions that provably can't change the HiCCUPS results, before any of them are scheduled:
+     * <p/>
+     * > regions whose rows or columns are entirely NaN in the normalization vector (every expected value is NaN)
+     * <p/>
+     * > regions above the diagonal with no contacts at all, checked against the coarsest zoom of the map. Every
+     * pixel of such a region has observed 0 and expected 0 (lambda bin 0), so they are only counted here and
+     * added back to the histograms (see getNumEmptyPixelsSkipped). Regions containing a requested loop are kept
+     * so that the loop is still reported.
+     *
+     * @return number of regions skipped
+     */
+    public int removeEmptyRegions(Dataset ds, HiCZoom zoom, int peakWidth, Feature2DHandler requestedFeatures) {
+
+        for (HiCZoom candidate : ds.getBpZooms()) {
+            if (candidate.getBinSize() > zoom.getBinSize() &&
+                    (coarseZoom == null || candidate.getBinSize() > coarseZoom.getBinSize())) {
+                coarseZoom = candidate;
+            }
+        }
+
+        List<HiCCUPSRegionContainer> nonEmptyRegionContainers = new ArrayList<>();
+
+        for (HiCCUPSRegionContainer regionContainer : allRegionContainers) {
+            Chromosome chromosome = regionContainer.getChromosome();
+            if (coarseZoom != null && !coarseContactSums.containsKey(chromosome.getIndex())) {
+                coarseContactSums.put(chromosome.getIndex(), extractCoarseContactSums(ds, chromosome, coarseZoom));
+            }
+
+            if (!isEmptyRegion(regionContainer, zoom, peakWidth, coarseContactSums.get(chromosome.getIndex()),
+                    requestedFeatures)) {
+                nonEmptyRegionContainers.add(regionContainer);
+            }
+        }
+
+        int numSkipped = allRegionContainers.size() - nonEmptyRegionContainers.size();
+        allRegionContainers.clear();
+        allRegionContainers.addAll(nonEmptyRegionContainers);
+        return numSkipped;
+    }
+
+    private boolean isEmptyRegion(HiCCUPSRegionContainer regionContainer, HiCZoom zoom, int peakWidth,
+                                  double[][] coarseContactSum, Feature2DHandler requestedFeatures) {
+
+        double[] normalizationVector = getNormalizationVector(regionContainer, zoom);
+        int[] rowBounds = regionContainer.getRowBounds();
+        int[] columnBounds = regionContainer.getColumnBounds();
+
+        // only the final (non-margin) pixels are kept from a region
+        int numValidRows = countValidNormalizationEntries(normalizationVector, rowBounds[4], rowBounds[5]);
+        int numValidColumns = countValidNormalizationEntries(normalizationVector, columnBounds[4], columnBounds[5]);
+        if (numValidRows == 0 || numValidColumns == 0) {
+            return true;
+        }
+        if (numValidRows < 0 || numValidColumns < 0 || coarseContactSum == null) {
+            return false;
+        }
+
+        // whole region (margins included) must be strictly above the diagonal, away from the diagonal cleanup
+        int numRows = rowBounds[5] - rowBounds[4];
+        int relativeDiagonal = (rowBounds[4] - columnBounds[4]) + peakWidth + 2;
+        if (rowBounds[1] > columnBounds[0] || relativeDiagonal >= -(numRows - 1)) {
+            return false;
+        }
+
+        // expected vector must be positive over every distance the region spans, else expected values can be NaN
+        double[] expectedVector = getExpectedVector(regionContainer, zoom);
+        int minDistance = columnBounds[0] - (rowBounds[1] - 1);
+        int maxDistance = columnBounds[1] - 1 - rowBounds[0];
+        if (maxDistance >= expectedVector.length) {
+            return false;
+        }
+        for (int k = minDistance; k <= maxDistance; k++) {
+            float val = (float) expectedVector[k];
+            if (!(val > 0) || Float.isInfinite(val)) {
+                return false;
+            }
+        }
+
+        if (coarseContacts(coarseContactSum, rowBounds, columnBounds, zoom) > 0) {
+            return false;
+        }
+
+        long resolution = zoom.getBinSize();
+
+        if (requestedFeatures != null) {
+            Chromosome chromosome = regionContainer.getChromosome();
+            net.sf.jsi.Rectangle currentWindow = new net.sf.jsi.Rectangle(
+                    ((float) rowBounds[4]) * resolution, ((float) columnBounds[4]) * resolution,
+                    ((float) rowBounds[5] - 1) * resolution, ((float) columnBounds[5] - 1) * resolution);
+            List<Feature2D> foundFeatures = requestedFeatures.getContainedFeatures(chromosome.getIndex(),
+                    chromosome.getIndex(), currentWindow);
+            if (foundFeatures.size() > 0) {
+                return false;
+            }
+        }
+
+        numEmptyPixelsSkipped += ((long) numValidRows) * numValidColumns;
+        return true;
+    }
+
+    /**
+     * @return number of finite entries in [start, end), or -1 if any are infinite
+     */
+    private int countValidNormalizationEntries(double[] normalizationVector, int start, int end) {
+        int count = 0;
+        for (int i = start; i < Math.min(end, normalizationVector.length); i++) {
+            float val = (float) normalizationVector[i];
+            if (Float.isInfinite(val)) {
+                return -1;
+            } else if (!Float.isNaN(val)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return prefix sums of the raw contacts of the chromosome at the coarse zoom, or null if unavailable
+     */
+    private double[][] extractCoarseContactSums(Dataset ds, Chromosome chromosome, HiCZoom coarseZoom) {
+        Matrix matrix = ds.getMatrix(chromosome, chromosome);
+        if (matrix == null) return null;
+        MatrixZoomData zd = matrix.getZoomData(coarseZoom);
+        if (zd == null) return null;
+
+        int n = (int) Math.ceil((double) chromosome.getLength() / coarseZoom.getBinSize()) + 1;
+        try {
+            RealMatrix coarseData = HiCFileTools.extractLocalBoundedRegion(zd, 0, n, 0, n, n, n,
+                    NormalizationHandler.NONE, true);
+            double[][] sums = new double[n + 1][n + 1];
+            for (int i = 0; i < n; i++) {
+                for (int j = 0; j < n; j++) {
+                    double val = coarseData.getEntry(i, j);
+                    // anything unexpected counts as contacts
+                    double contacts = Double.isNaN(val) ? 1 : Math.abs(val);
+                    sums[i + 1][j + 1] = sums[i][j + 1] + sums[i + 1][j] - sums[i][j] + contacts;
+                }
+            }
+            return sums;
+        } catch (Exception e) {
+            if (HiCGlobals.printVerboseComments) {
+                System.out.println("Unable to check " + chromosome.getName() + " for empty regions " + e.getLocalizedMessage());
+            }
+            return null;
+        }
+    }
+
+    /**
+     * @return raw contacts of the coarse bins overlapping the region (margins included)
+     */
+    private double coarseContacts(double[][] coarseContactSum, int[] rowBounds, int[] columnBounds, HiCZoom zoom) {
+        long resolution = zoom.getBinSize();
+        long coarseBinSize = coarseZoom.getBinSize();
+        int coarseRow1 = (int) (rowBounds[0] * resolution / coarseBinSize);
+        int coarseRow2 = (int) ((rowBounds[1] * resolution - 1) / coarseBinSize) + 1;
+        int coarseColumn1 = (int) (columnBounds[0] * resolution / coarseBinSize);
+        int coarseColumn2 = (int) ((columnBounds[1] * resolution - 1) / coarseBinSize) + 1;
+        return boxSum(coarseContactSum, coarseRow1, coarseRow2, coarseColumn1, coarseColumn2);
+    }
+
+    /**
+     * Rough number of contacts in a region, from the coarse zoom read by removeEmptyRegions
+     *
+     * @return contacts of the overlapping coarse bins, or 0 if they weren't read (e.g. targeted runs)
+     */
+    public double estimateContacts(HiCCUPSRegionContainer regionContainer, HiCZoom zoom) {
+        double[][] coarseContactSum = coarseContactSums.get(regionContainer.getChromosome().getIndex());
+        if (coarseZoom == null || coarseContactSum == null) return 0;
+        double contacts = coarseContacts(coarseContactSum, regionContainer.getRowBounds(),
+                regionContainer.getColumnBounds(), zoom);
+        return Double.isInfinite(contacts) ? 0 : contacts;
+    }
+
+    private double boxSum(double[][] sums, int r1, int r2, int c1, int c2) {
+        int n = sums.length - 1;
+        if (r2 > n || c2 > n) return Double.POSITIVE_INFINITY;
+        return sums[r2][c2] - sums[r1][c2] - sums[r2][c1] + sums[r1][c1];
+    }
+
+    /**
+     * Keep only one of numShards contiguous ranges of the regions (regions are in chromosome order, so a shard
+     * covers as few chromosomes as possible); should be called before removeEmptyRegions
+     */
+    public void restrictToShard(int shardIndex, int numShards) {
+        int numRegions = allRegionContainers.size();
+        int start = (int) ((long) numRegions * shardIndex / numShards);
+        int end = (int) ((long) numRegions * (shardIndex + 1) / numShards);
+        List<HiCCUPSRegionContainer> shard = new ArrayList<>(allRegionContainers.subList(start, end));
+        allRegionContainers.clear();
+        allRegionContainers.addAll(shard);
+    }
+
+    /**
+     * @return number of pixels (observed 0, lambda bin 0) in the empty regions dropped by removeEmptyRegions
+     */
+    public long getNumEmptyPixelsSkipped() {
+        return numEmptyPixelsSkipped;
+    }
+
     public int getSize() {
         return allRegionContainers.size();
     }
@@ -142,4 +438,34 @@ public class HiCCUPSRegionHandler {
     public double[] getExpectedVector(HiCCUPSRegionContainer regionContainer, HiCZoom zoom) {
         return expectedVectorMap.get(new Pair<>(regionContainer.getChromosome().getIndex(), zoom));
     }
+
+    /**
+     * Read the observed data, expected vector and sliced normalization vectors for a region
+     *
+     * @param observed buffer of at least matrixSize * matrixSize entries for the observed counts (row-major);
+     *                 it is cleared first, so it can be reused across regions
+     */
+    public HiCCUPSRegionData loadRegionData(int regionIndex, int matrixSize, NormalizationType normalizationType,
+                                           HiCZoom zoom, float[] observed) throws IOException {
+
+        HiCCUPSRegionContainer regionContainer = getRegionFromIndex(regionIndex);
+        MatrixZoomData zd = getZoomData(regionContainer, zoom);
+        double[] normalizationVector = getNormalizationVector(regionContainer, zoom);
+        float[] distanceExpectedKRVector = floatExpectedVectorMap.get(
+                new Pair<>(regionContainer.getChromosome().getIndex(), zoom));
+        int[] rowBounds = regionContainer.getRowBounds();
+        int[] columnBounds = regionContainer.getColumnBounds();
+
+        MatrixTools.fillLocalBoundedRegion(observed, 0, matrixSize, zd, rowBounds[0], rowBounds[1],
+                columnBounds[0], columnBounds[1], matrixSize, matrixSize, normalizationType, false);
+
+        // slice KR vector to localized region
+        float[] kr1CPU = ArrayTools.copyRangeToFloatArray(normalizationVector, rowBounds[0], rowBounds[1],
+                matrixSize, Float.NaN);
+        float[] kr2CPU = ArrayTools.copyRangeToFloatArray(normalizationVector, columnBounds[0], columnBounds[1],
+                matrixSize, Float.NaN);
+
+        return new HiCCUPSRegionData(regionIndex, regionContainer, observed,
+                distanceExpectedKRVector, kr1CPU, kr2CPU);
+    }
 }
@@ -0,0 +1,201 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011-2021 Broad Institute, Aiden Lab, Rice University, Baylor College of Medicine
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+
+package juicebox.tools.utils.juicer.hiccups;
+
+import javastraw.reader.type.HiCZoom;
+import javastraw.reader.type.NormalizationType;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntPredicate;
+
+/**
+ * Reads HiCCUPS regions ahead of the compute threads.
+ * <p/>
+ * Reader threads walk the regions of a HiCCUPSRegionHandler, in the order given by a HiCCUPSRegionScheduler, and push the extracted data into a bounded queue,
+ * so at most prefetchDepth regions are held in memory while the compute threads are busy running the kernel.
+ * If a region cache is given, regions that were cached during the first run are loaded from it instead. Regions
+ * rejected by the filter (if any) are skipped.
+ * The observed count buffers are handed back through recycle once the kernel is done with a region, so only
+ * about as many buffers as regions in flight are ever allocated.
+ * If a compute thread fails, cancel stops the readers so none of them is left blocked on the full queue.
+ */
+public class HiCCUPSRegionPrefetcher {
+
+    // marks the end of the regions; handed back to the queue so every compute thread sees it
+    private static final HiCCUPSRegionData END_OF_REGIONS = new HiCCUPSRegionData(-1, null, null);
+
+    private final HiCCUPSRegionHandler regionHandler;
+    private final HiCCUPSRegionScheduler scheduler;
+    private final IntPredicate regionFilter;
+    private final HiCCUPSRegionCache regionCache;
+    private final int matrixSize;
+    private final NormalizationType norm;
+    private final HiCZoom zoom;
+    private final int numReaders;
+    private final BlockingQueue<HiCCUPSRegionData> queue;
+    private final AtomicInteger indexOfNextRegion = new AtomicInteger(0);
+    private final AtomicInteger numActiveReaders;
+    private final ConcurrentLinkedQueue<float[]> freeBuffers = new ConcurrentLinkedQueue<>();
+    private ExecutorService readers = null;
+    private volatile boolean cancelled = false;
+
+    public HiCCUPSRegionPrefetcher(HiCCUPSRegionHandler regionHandler, HiCCUPSRegionScheduler scheduler,
+                                   IntPredicate regionFilter, HiCCUPSRegionCache regionCache, int matrixSize, NormalizationType norm,
+                                   HiCZoom zoom, int numReaders, int prefetchDepth) {
+        this.regionHandler = regionHandler;
+        this.scheduler = scheduler;
+        this.regionFilter = regionFilter;
+        this.regionCache = regionCache;
+        this.matrixSize = matrixSize;
+        this.norm = norm;
+        this.zoom = zoom;
+        this.numReaders = Math.max(numReaders, 1);
+        this.queue = new ArrayBlockingQueue<>(Math.max(prefetchDepth, 1));
+        this.numActiveReaders = new AtomicInteger(this.numReaders);
+    }
+
+    public void start() {
+        readers = Executors.newFixedThreadPool(numReaders);
+        for (int l = 0; l < numReaders; l++) {
+            Runnable reader = new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        readRegions();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            };
+            readers.execute(reader);
+        }
+        readers.shutdown();
+    }
+
+    private void readRegions() throws InterruptedException {
+        try {
+            int position = indexOfNextRegion.getAndIncrement();
+            while (position < scheduler.getSize() && !cancelled) {
+                int indexOfRegionForThread = scheduler.getRegionIndex(position);
+                if (regionFilter != null && !regionFilter.test(indexOfRegionForThread)) {
+                    position = indexOfNextRegion.getAndIncrement();
+                    continue;
+                }
+                try {
+                    HiCCUPSRegionData regionData = null;
+                    if (regionCache != null) {
+                        regionData = loadCachedRegion(indexOfRegionForThread);
+                    }
+                    if (regionData == null) {
+                        float[] observed = freeBuffers.poll();
+                        if (observed == null) {
+                            observed = new float[matrixSize * matrixSize];
+                        }
+                        regionData = regionHandler.loadRegionData(indexOfRegionForThread, matrixSize, norm, zoom,
+                                observed);
+                    }
+                    queue.put(regionData);
+                } catch (IOException e) {
+                    System.err.println("No data in map region");
+                }
+                position = indexOfNextRegion.getAndIncrement();
+            }
+        } finally {
+            if (numActiveReaders.decrementAndGet() == 0) {
+                // nobody may be draining the queue any more once cancelled
+                if (cancelled) {
+                    queue.offer(END_OF_REGIONS);
+                } else {
+                    queue.put(END_OF_REGIONS);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the region with its cached kernel outputs, or null if it has to be read and run through the kernel
+     * again (never cached, or the cache could not be read)
+     */
+    private HiCCUPSRegionData loadCachedRegion(int regionIndex) {
+        try {
+            GPUOutputContainer cachedOutputs = regionCache.load(regionIndex);
+            if (cachedOutputs != null) {
+                return new HiCCUPSRegionData(regionIndex, regionHandler.getRegionFromIndex(regionIndex), cachedOutputs);
+            }
+        } catch (IOException e) {
+            System.err.println("Unable to load cached HiCCUPS region " + e.getLocalizedMessage());
+        }
+        return null;
+    }
+
+    /**
+     * Blocks until the next region has been read
+     *
+     * @return the next region, or null once all regions have been handed out or the prefetcher was cancelled
+     */
+    public HiCCUPSRegionData take() throws InterruptedException {
+        if (cancelled) return null;
+        HiCCUPSRegionData regionData = queue.take();
+        if (cancelled) {
+            queue.offer(END_OF_REGIONS);
+            return null;
+        }
+        if (regionData == END_OF_REGIONS) {
+            // everything queued before the marker has already been taken, so this never blocks
+            queue.put(END_OF_REGIONS);
+            return null;
+        }
+        return regionData;
+    }
+
+    /**
+     * Stops reading after a compute thread failed: interrupts the readers, drops the queued regions and wakes up
+     * the remaining compute threads
+     */
+    public void cancel() {
+        cancelled = true;
+        if (readers != null) {
+            readers.shutdownNow();
+        }
+        queue.clear();
+        queue.offer(END_OF_REGIONS);
+    }
+
+    /**
+     * Hand back the observed buffer of a region once the kernel has processed it
+     */
+    public void recycle(HiCCUPSRegionData regionData) {
+        if (regionData.getObserved() != null) {
+            freeBuffers.offer(regionData.getObserved());
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011-2021 Broad Institute, Aiden Lab, Rice University, Baylor College of Medicine
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+
+
+package juicebox.tools.utils.juicer.hiccups;
+
+import java.util.*;
+
+/**
+ * Stratified random sample of the regions of a HiCCUPS run, for an approximate 1st pass.
+ * <p/>
+ * Regions are grouped by chromosome and distance band (diagonal tiles, then bands doubling in width away from the
+ * diagonal) and the same fraction of each group is drawn, at least one region per group. Histogram counts of a
+ * sampled region are weighted by the size of its group over the number drawn from it, in fixed point, so that the
+ * histograms estimate UNIT_WEIGHT times the full ones; the thresholds only depend on their shape, not on the scale.
+ */
+public class HiCCUPSRegionSample {
+
+    public static final long UNIT_WEIGHT = 64;
+    private static final long SEED = 0x48434350L;
+
+    private final long[] weights;
+    private final int numSampled;
+
+    public HiCCUPSRegionSample(HiCCUPSRegionHandler regionHandler, double fraction) {
+        int numRegions = regionHandler.getSize();
+        weights = new long[numRegions];
+
+        Map<String, List<Integer>> strata = new LinkedHashMap<>();
+        for (int i = 0; i < numRegions; i++) {
+            HiCCUPSRegionContainer regionContainer = regionHandler.getRegionFromIndex(i);
+            String key = regionContainer.getChromosome().getIndex() + "_" + getDistanceBand(regionContainer);
+            List<Integer> stratum = strata.get(key);
+            if (stratum == null) {
+                stratum = new ArrayList<>();
+                strata.put(key, stratum);
+            }
+            stratum.add(i);
+        }
+
+        Random random = new Random(SEED);
+        int count = 0;
+        for (List<Integer> stratum : strata.values()) {
+            int numToDraw = Math.max(1, (int) Math.round(fraction * stratum.size()));
+            long weight = Math.round((double) UNIT_WEIGHT * stratum.size() / numToDraw);
+            Collections.shuffle(stratum, random);
+            for (int k = 0; k < numToDraw; k++) {
+                weights[stratum.get(k)] = weight;
+            }
+            count += numToDraw;
+        }
+        numSampled = count;
+    }
+
+    /**
+     * Band 0 holds the tiles on the diagonal; further bands double in width moving away from it
+     */
+    private static int getDistanceBand(HiCCUPSRegionContainer regionContainer) {
+        int[] rowBounds = regionContainer.getRowBounds();
+        int[] columnBounds = regionContainer.getColumnBounds();
+        int width = Math.max(rowBounds[5] - rowBounds[4], 1);
+        int offset = (columnBounds[4] - rowBounds[5]) / width;
+        if (offset < 0) return 0;
+        return 32 - Integer.numberOfLeadingZeros(offset + 1);
+    }
+
+    public boolean isSampled(int regionIndex) {
+        return weights[regionIndex] > 0;
+    }
+
+    /**
+     * @return histogram weight of a sampled region, in units of 1 / UNIT_WEIGHT regions
+     */
+    public long getWeight(int regionIndex) {
+        return weights[regionIndex];
+    }
+
+    public int getNumSampled() {
+        return numSampled;
+    }
+
+    public int getSize() {
+        return weights.length;
+    }
+
+    /**
+     * @return average weight of the sampled regions; roughly the factor between the variance of a weighted
+     * histogram count and its value
+     */
+    public double getMeanWeight() {
+        long sum = 0;
+        for (long weight : weights) {
+            sum += weight;
+        }
+        return numSampled > 0 ? (double) sum / numSampled : UNIT_WEIGHT;
+    }
+}
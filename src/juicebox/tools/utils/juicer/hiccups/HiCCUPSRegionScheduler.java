@@ -0,0 +1,219 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011-2021 Broad Institute, Aiden Lab, Rice University, Baylor College of Medicine
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+
+
+package juicebox.tools.utils.juicer.hiccups;
+
+import javastraw.reader.type.HiCZoom;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Orders the regions of a HiCCUPS run so the most expensive ones are handed out first (longest processing time
+ * first), which keeps a single large region from holding up the end of the run while the other threads idle.
+ * <p/>
+ * The cost of a region is modeled from the number of pixels the kernel evaluates (within the search band) and
+ * a rough contact count read at the coarsest zoom; by default regions are ranked on their pixels, the contacts
+ * only breaking ties, since the two counts are in unrelated units. Kernel times of each region are recorded while running and
+ * written to a timings file; if such a file from an earlier run is found, the model is fit to those times and
+ * regions that were measured before are ordered by their measured time instead.
+ */
+public class HiCCUPSRegionScheduler {
+
+    private static final String TIMINGS_PREFIX = "region_timings_";
+
+    private final HiCCUPSRegionHandler regionHandler;
+    private final long[] evaluatedPixels;
+    private final double[] contacts;
+    private final Integer[] order;
+    private final AtomicLongArray nanos;
+    private final Map<String, long[]> previousTimings = new HashMap<>();
+
+    /**
+     * @param maxDistance  maximum distance (in bins) from the diagonal evaluated by the kernel; negative for no limit
+     * @param timingsFile  timings of an earlier run, ignored if it doesn't exist
+     */
+    public HiCCUPSRegionScheduler(HiCCUPSRegionHandler regionHandler, HiCZoom zoom, int maxDistance,
+                                  File timingsFile) {
+        this.regionHandler = regionHandler;
+        int numRegions = regionHandler.getSize();
+        evaluatedPixels = new long[numRegions];
+        contacts = new double[numRegions];
+        nanos = new AtomicLongArray(numRegions);
+        for (int i = 0; i < numRegions; i++) {
+            HiCCUPSRegionContainer regionContainer = regionHandler.getRegionFromIndex(i);
+            evaluatedPixels[i] = countEvaluatedPixels(regionContainer, maxDistance);
+            contacts[i] = regionHandler.estimateContacts(regionContainer, zoom);
+        }
+
+        if (timingsFile != null && timingsFile.exists()) {
+            try {
+                readTimings(timingsFile);
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Unable to read region timings " + timingsFile.getPath() + "; using default cost model");
+                previousTimings.clear();
+            }
+        }
+
+        final double[] costs = estimateCosts();
+        order = new Integer[numRegions];
+        for (int i = 0; i < numRegions; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer o1, Integer o2) {
+                return Double.compare(costs[o2], costs[o1]);
+            }
+        });
+    }
+
+    public static File getTimingsFile(File directory, int resolution, int shardIndex, int numShards) {
+        String shardSuffix = numShards > 1 ? "_shard_" + shardIndex + "_of_" + numShards : "";
+        return new File(directory, TIMINGS_PREFIX + resolution + shardSuffix + ".txt");
+    }
+
+    /**
+     * @return index (in the region handler) of the region to hand out at this position
+     */
+    public int getRegionIndex(int position) {
+        return order[position];
+    }
+
+    public int getSize() {
+        return order.length;
+    }
+
+    /**
+     * Records the kernel time of a region; only the first time recorded for a region is kept
+     */
+    public void recordTime(int regionIndex, long elapsedNanos) {
+        nanos.compareAndSet(regionIndex, 0, Math.max(elapsedNanos, 1));
+    }
+
+    /**
+     * Writes the recorded timings, keeping those of an earlier run for regions not measured this time
+     */
+    public void writeTimings(File timingsFile) {
+        try (PrintWriter writer = new PrintWriter(new BufferedWriter(new FileWriter(timingsFile)))) {
+            writer.println("#chr\trow_bin\tcolumn_bin1\tcolumn_bin2\tpixels\tcontacts\tnanos");
+            for (int i = 0; i < order.length; i++) {
+                long elapsedNanos = nanos.get(i);
+                if (elapsedNanos == 0) {
+                    long[] previous = previousTimings.get(getKey(regionHandler.getRegionFromIndex(i)));
+                    if (previous == null) continue;
+                    elapsedNanos = previous[2];
+                }
+                writer.println(getKey(regionHandler.getRegionFromIndex(i)) + "\t" + evaluatedPixels[i] + "\t"
+                        + (long) contacts[i] + "\t" + elapsedNanos);
+            }
+        } catch (IOException e) {
+            System.err.println("Unable to write region timings " + timingsFile.getPath());
+        }
+    }
+
+    private static String getKey(HiCCUPSRegionContainer regionContainer) {
+        int[] rowBounds = regionContainer.getRowBounds();
+        int[] columnBounds = regionContainer.getColumnBounds();
+        return regionContainer.getChromosome().getName() + "\t" + rowBounds[4] + "\t" + columnBounds[4] + "\t"
+                + columnBounds[5];
+    }
+
+    /**
+     * Pixels in the central part of the region that lie on or above the diagonal and within the search band
+     */
+    private static long countEvaluatedPixels(HiCCUPSRegionContainer regionContainer, int maxDistance) {
+        int[] rowBounds = regionContainer.getRowBounds();
+        int[] columnBounds = regionContainer.getColumnBounds();
+        long count = 0;
+        for (int row = rowBounds[4]; row < rowBounds[5]; row++) {
+            long firstColumn = Math.max(columnBounds[4], row);
+            long lastColumn = columnBounds[5] - 1;
+            if (maxDistance >= 0) {
+                lastColumn = Math.min(lastColumn, (long) row + maxDistance);
+            }
+            if (lastColumn >= firstColumn) {
+                count += lastColumn - firstColumn + 1;
+            }
+        }
+        return count;
+    }
+
+    private void readTimings(File timingsFile) throws IOException {
+        try (BufferedReader reader = new BufferedReader(new FileReader(timingsFile))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("#") || line.trim().isEmpty()) continue;
+                String[] tokens = line.split("\t");
+                String key = tokens[0] + "\t" + tokens[1] + "\t" + tokens[2] + "\t" + tokens[3];
+                previousTimings.put(key, new long[]{Long.parseLong(tokens[4]), Long.parseLong(tokens[5]),
+                        Long.parseLong(tokens[6])});
+            }
+        }
+    }
+
+    /**
+     * Fits nanos ~ a * pixels + b * contacts to the earlier timings (least squares); without timings, the
+     * contacts are scaled to less than one pixel so they only break ties between regions with as many pixels
+     */
+    private double[] estimateCosts() {
+        double maxContacts = 0;
+        for (double contact : contacts) {
+            maxContacts = Math.max(maxContacts, contact);
+        }
+        double pixelWeight = 1, contactWeight = 1 / (maxContacts + 1);
+        if (!previousTimings.isEmpty()) {
+            double spp = 0, spc = 0, scc = 0, spt = 0, sct = 0;
+            for (long[] timing : previousTimings.values()) {
+                spp += (double) timing[0] * timing[0];
+                spc += (double) timing[0] * timing[1];
+                scc += (double) timing[1] * timing[1];
+                spt += (double) timing[0] * timing[2];
+                sct += (double) timing[1] * timing[2];
+            }
+            double det = spp * scc - spc * spc;
+            pixelWeight = det > 0 ? (spt * scc - sct * spc) / det : -1;
+            contactWeight = det > 0 ? (spp * sct - spc * spt) / det : -1;
+            if (pixelWeight < 0 || contactWeight < 0) {
+                // degenerate or unphysical fit; fall back to time per pixel
+                pixelWeight = spp > 0 ? spt / spp : 1;
+                contactWeight = 0;
+            }
+        }
+
+        double[] costs = new double[evaluatedPixels.length];
+        for (int i = 0; i < costs.length; i++) {
+            long[] previous = previousTimings.get(getKey(regionHandler.getRegionFromIndex(i)));
+            if (previous != null) {
+                costs[i] = previous[2];
+            } else {
+                costs[i] = pixelWeight * evaluatedPixels[i] + contactWeight * contacts[i];
+            }
+        }
+        return costs;
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011-2021 Broad Institute, Aiden Lab, Rice University, Baylor College of Medicine
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+
+package juicebox.tools.utils.juicer.hiccups;
+
+import javastraw.reader.basics.Chromosome;
+import javastraw.reader.type.NormalizationType;
+
+import java.io.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Files exchanged between the stages of a sharded HiCCUPS run (deflate compressed, binary):
+ * <p/>
+ * > histograms of the 1st pass for one shard of the regions, which are summed by the merge stage
+ * <p/>
+ * > thresholds and fdr logs computed from the merged histograms, which are read by every shard of the 2nd pass
+ * <p/>
+ * > enriched (or requested) pixels of the 2nd pass for one shard, which are combined for post processing
+ * <p/>
+ * Each file records the parameters it was computed with (see getRunParameters and getShardParameters) and is
+ * rejected by a stage run with different ones, so shards of mismatched runs are never silently combined.
+ */
+public class HiCCUPSShardFiles {
+
+    private static final int MAGIC = 0x48435550; // "HCUP"
+    private static final int HISTOGRAMS = 1, THRESHOLDS = 2, PIXELS = 3;
+
+    private static final String HISTOGRAMS_PREFIX = "histograms_";
+    private static final String THRESHOLDS_PREFIX = "thresholds_";
+    private static final String PIXELS_PREFIX = "enriched_pixels_";
+    private static final String REQUESTED_PIXELS_PREFIX = "requested_pixels_";
+    private static final String EXTENSION = ".bin";
+
+    /**
+     * @param maxDistance search band of --restrict in bp, 0 if unrestricted
+     * @return everything the histograms and thresholds of a resolution depend on
+     */
+    public static String getRunParameters(HiCCUPSConfiguration conf, NormalizationType norm, int maxDistance) {
+        return "resolution " + conf.getResolution() + ", peak width " + conf.getPeakWidth() + ", window "
+                + conf.getWindowWidth() + ", fdr " + conf.getFDRThreshold() + ", norm " + norm.getLabel()
+                + ", max distance " + maxDistance;
+    }
+
+    /**
+     * @return run parameters plus what decides how the regions are split into shards
+     */
+    public static String getShardParameters(String runParameters, int matrixSize, Chromosome[] chromosomes) {
+        StringBuilder names = new StringBuilder();
+        for (Chromosome chromosome : chromosomes) {
+            names.append(chromosome.getName()).append(',');
+        }
+        return runParameters + ", matrix size " + matrixSize + ", " + chromosomes.length + " chromosomes ("
+                + Integer.toHexString(names.toString().hashCode()) + ")";
+    }
+
+    public static File getHistogramsFile(File directory, int resolution, int shardIndex, int numShards) {
+        return new File(directory, HISTOGRAMS_PREFIX + resolution + getShardSuffix(shardIndex, numShards));
+    }
+
+    public static File getThresholdsFile(File directory, int resolution) {
+        return new File(directory, THRESHOLDS_PREFIX + resolution + EXTENSION);
+    }
+
+    public static File getPixelsFile(File directory, int resolution, int shardIndex, int numShards,
+                                     boolean isRequested) {
+        String prefix = isRequested ? REQUESTED_PIXELS_PREFIX : PIXELS_PREFIX;
+        return new File(directory, prefix + resolution + getShardSuffix(shardIndex, numShards));
+    }
+
+    private static String getShardSuffix(int shardIndex, int numShards) {
+        return "_shard_" + shardIndex + "_of_" + numShards + EXTENSION;
+    }
+
+    /**
+     * @return the histogram files of all shards for this resolution, indexed by shard
+     * @throws IOException if shards are missing or the files disagree on the number of shards
+     */
+    public static File[] findHistogramsFiles(File directory, int resolution) throws IOException {
+        return findShardFiles(directory, HISTOGRAMS_PREFIX + resolution);
+    }
+
+    public static File[] findPixelsFiles(File directory, int resolution, boolean isRequested) throws IOException {
+        return findShardFiles(directory, (isRequested ? REQUESTED_PIXELS_PREFIX : PIXELS_PREFIX) + resolution);
+    }
+
+    private static File[] findShardFiles(File directory, String prefix) throws IOException {
+        Pattern pattern = Pattern.compile(Pattern.quote(prefix) + "_shard_(\\d+)_of_(\\d+)" + Pattern.quote(EXTENSION));
+        File[] shardFiles = null;
+        File[] candidates = directory.listFiles();
+        if (candidates != null) {
+            for (File file : candidates) {
+                Matcher matcher = pattern.matcher(file.getName());
+                if (!matcher.matches()) continue;
+                int shardIndex = Integer.parseInt(matcher.group(1));
+                int numShards = Integer.parseInt(matcher.group(2));
+                if (shardFiles == null) {
+                    shardFiles = new File[numShards];
+                } else if (shardFiles.length != numShards) {
+                    throw new IOException("Shards of " + prefix + " were written for different shard counts");
+                }
+                if (shardIndex < numShards) {
+                    shardFiles[shardIndex] = file;
+                }
+            }
+        }
+        if (shardFiles == null) {
+            throw new IOException("No shards of " + prefix + " found in " + directory.getAbsolutePath());
+        }
+        for (int k = 0; k < shardFiles.length; k++) {
+            if (shardFiles[k] == null) {
+                throw new IOException("Shard " + k + " of " + shardFiles.length + " missing for " + prefix);
+            }
+        }
+        return shardFiles;
+    }
+
+    /**
+     * @param parameters shard parameters of the stage
+     */
+    public static void writeHistograms(File file, String parameters, HiCCUPSHistograms histograms) throws IOException {
+        try (DataOutputStream out = openOutput(file, HISTOGRAMS, parameters)) {
+            histograms.write(out);
+        }
+    }
+
+    public static HiCCUPSHistograms readHistograms(File file, String parameters) throws IOException {
+        try (DataInputStream in = openInput(file, HISTOGRAMS, parameters)) {
+            return HiCCUPSHistograms.read(in);
+        }
+    }
+
+    /**
+     * @param parameters run parameters; the thresholds don't depend on how the regions were split, so they can
+     *                   also be used by a targeted run
+     */
+    public static void writeThresholds(File file, String parameters, HiCCUPSThresholds thresholds) throws IOException {
+        try (DataOutputStream out = openOutput(file, THRESHOLDS, parameters)) {
+            thresholds.write(out);
+        }
+    }
+
+    public static HiCCUPSThresholds readThresholds(File file, String parameters) throws IOException {
+        try (DataInputStream in = openInput(file, THRESHOLDS, parameters)) {
+            return HiCCUPSThresholds.read(in);
+        }
+    }
+
+    /**
+     * @param parameters shard parameters of the stage
+     */
+    public static void writePixels(File file, String parameters, EnrichedPixelTable pixels) throws IOException {
+        try (DataOutputStream out = openOutput(file, PIXELS, parameters)) {
+            pixels.write(out);
+        }
+    }
+
+    public static EnrichedPixelTable readPixels(File file, String parameters) throws IOException {
+        try (DataInputStream in = openInput(file, PIXELS, parameters)) {
+            return EnrichedPixelTable.read(in);
+        }
+    }
+
+    private static DataOutputStream openOutput(File file, int type, String parameters) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new DeflaterOutputStream(new FileOutputStream(file))));
+        out.writeInt(MAGIC);
+        out.writeInt(type);
+        out.writeUTF(parameters);
+        return out;
+    }
+
+    private static DataInputStream openInput(File file, int type, String parameters) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new InflaterInputStream(new FileInputStream(file))));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != type) {
+                throw new IOException(file.getAbsolutePath() + " is not a HiCCUPS shard file of the expected type");
+            }
+            String fileParameters = in.readUTF();
+            if (!fileParameters.equals(parameters)) {
+                throw new IOException(file.getAbsolutePath() + " was written with different parameters ("
+                        + fileParameters + ") than this stage (" + parameters + ")");
+            }
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+        return in;
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011-2021 Broad Institute, Aiden Lab, Rice University, Baylor College of Medicine
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+
+package juicebox.tools.utils.juicer.hiccups;
+
+import juicebox.tools.clt.juicer.HiCCUPS;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Checks that the histograms and thresholds stages of a sharded HiCCUPS run give exactly the thresholds of an
+ * unsharded run, and that shard files of a run with different parameters are rejected
+ */
+class HiCCUPSShardFilesTesting {
+
+    private static final int W2 = 10000;
+    private static final int SIZE = 128, NUM_REGIONS = 24, NUM_SHARDS = 3;
+    private static final String PARAMETERS = "resolution 5000, peak width 4, window 7, fdr 10.0, norm KR, "
+            + "max distance 0, matrix size 128, 1 chromosomes (0)";
+
+    public static void test() throws IOException {
+        HiCCUPSConfiguration conf = HiCCUPSConfiguration.getDefaultConfigFor5K();
+        File directory = Files.createTempDirectory("hiccups_shards").toFile();
+        try {
+            // unsharded: all regions go into one set of histograms
+            HiCCUPSHistograms histograms = new HiCCUPSHistograms(HiCCUPS.w1, W2);
+            for (int i = 0; i < NUM_REGIONS; i++) {
+                processRegion(conf, i).updateHistograms(histograms, conf.getPeakWidth() + 2, HiCCUPS.w1, W2, 1);
+            }
+            HiCCUPSThresholds expected = new HiCCUPSThresholds(HiCCUPS.w1, W2);
+            expected.calculate(histograms, conf.getFDRThreshold());
+
+            // sharded: contiguous ranges of regions, each saved to its own file, then merged
+            for (int k = 0; k < NUM_SHARDS; k++) {
+                HiCCUPSHistograms shard = new HiCCUPSHistograms(HiCCUPS.w1, W2);
+                for (int i = NUM_REGIONS * k / NUM_SHARDS; i < NUM_REGIONS * (k + 1) / NUM_SHARDS; i++) {
+                    processRegion(conf, i).updateHistograms(shard, conf.getPeakWidth() + 2, HiCCUPS.w1, W2, 1);
+                }
+                HiCCUPSShardFiles.writeHistograms(HiCCUPSShardFiles.getHistogramsFile(directory,
+                        conf.getResolution(), k, NUM_SHARDS), PARAMETERS, shard);
+            }
+            File[] shardFiles = HiCCUPSShardFiles.findHistogramsFiles(directory, conf.getResolution());
+            HiCCUPSHistograms[] shards = new HiCCUPSHistograms[shardFiles.length];
+            for (int k = 0; k < shardFiles.length; k++) {
+                shards[k] = HiCCUPSShardFiles.readHistograms(shardFiles[k], PARAMETERS);
+            }
+            HiCCUPSThresholds merged = new HiCCUPSThresholds(HiCCUPS.w1, W2);
+            merged.calculate(HiCCUPSHistograms.merge(shards, HiCCUPS.w1, W2), conf.getFDRThreshold());
+
+            if (!Arrays.equals(expected.getThresholdBL(), merged.getThresholdBL())
+                    || !Arrays.equals(expected.getThresholdDonut(), merged.getThresholdDonut())
+                    || !Arrays.equals(expected.getThresholdH(), merged.getThresholdH())
+                    || !Arrays.equals(expected.getThresholdV(), merged.getThresholdV())
+                    || !Arrays.deepEquals(expected.getFdrLogBL(), merged.getFdrLogBL())
+                    || !Arrays.deepEquals(expected.getFdrLogDonut(), merged.getFdrLogDonut())
+                    || !Arrays.deepEquals(expected.getFdrLogH(), merged.getFdrLogH())
+                    || !Arrays.deepEquals(expected.getFdrLogV(), merged.getFdrLogV())) {
+                throw new IllegalStateException("Sharded thresholds differ from the unsharded ones");
+            }
+
+            try {
+                HiCCUPSShardFiles.readHistograms(shardFiles[0], PARAMETERS.replace("matrix size 128", "matrix size 256"));
+                throw new IllegalStateException("Shard written with a different matrix size was accepted");
+            } catch (IOException e) {
+                // expected
+            }
+            System.out.println("Sharded thresholds match the unsharded ones over " + NUM_SHARDS + " shards");
+        } finally {
+            File[] files = directory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            directory.delete();
+        }
+    }
+
+    /**
+     * Kernel outputs of a synthetic region on the diagonal
+     */
+    private static GPUOutputContainer processRegion(HiCCUPSConfiguration conf, int seed) {
+        int margin = HiCCUPS.regionMargin;
+        int[] bounds = new int[]{0, SIZE, margin, margin, margin, SIZE - margin};
+        Random random = new Random(seed);
+        float[] observed = new float[SIZE * SIZE];
+        for (int i = 0; i < SIZE; i++) {
+            for (int j = i; j < SIZE; j++) {
+                observed[i * SIZE + j] = random.nextInt(1 + 200 / (j - i + 1));
+                observed[j * SIZE + i] = observed[i * SIZE + j];
+            }
+        }
+        float[] expected = new float[2 * SIZE];
+        for (int k = 0; k < expected.length; k++) {
+            expected[k] = 100f / (k + 1);
+        }
+        float[] kr = new float[SIZE];
+        Arrays.fill(kr, 1);
+        float[] thresholds = new float[HiCCUPS.w1];
+        Arrays.fill(thresholds, W2);
+        HiCCUPSSummedAreaEngine engine = new HiCCUPSSummedAreaEngine(conf.getWindowWidth(), SIZE,
+                conf.getPeakWidth(), -1, false, null);
+        return engine.process(observed, expected, kr, kr, thresholds, thresholds, thresholds, thresholds,
+                bounds, bounds);
+    }
+}
@@ -0,0 +1,412 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011-2021 Broad Institute, Aiden Lab, Rice University, Baylor College of Medicine
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package juicebox.tools.utils.juicer.hiccups;
+
+import juicebox.tools.clt.juicer.HiCCUPS;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * CPU version of the HiCCUPS kernel (see HiCCUPSKernel.cu) built on summed-area tables; the "java" compute backend.
+ * <p/>
+ * The observed counts and the distance expected values are prefix summed once per region, using the same
+ * NaN and lower-triangle masking as the kernel, so that every bottom left and donut box is an O(1) lookup
+ * (including each step of the bottom left widening loop). The cross hairs and the horizontal/vertical masks
+ * are only O(window) per pixel and are still summed directly.
+ * <p/>
+ * Those direct sums are float reductions whose order decides the exact expected values (and so the lambda bins),
+ * which is why they are kept scalar: HotSpot only vectorizes them by reordering the additions, and the Vector API
+ * is not available on the Java 8 target.
+ * <p/>
+ * Pixels below the diagonal (which the callers mask out anyway) and pixels further than maxDistance from the
+ * diagonal are not evaluated; all their outputs are NaN.
+ * <p/>
+ * In peaks only mode (2nd pass without a requested loop list), the observed value of a pixel is first compared
+ * against the lowest threshold it could possibly face: the largest, over the four masks, of the smallest threshold
+ * across all bins. Pixels that cannot exceed it can never have a positive peak value, so their windows are not
+ * summed and their outputs are left NaN; the peaks themselves are unchanged.
+ * <p/>
+ * If a row pool is given, the rows of each region are split into blocks evaluated on that pool (for runs with fewer
+ * regions than threads); the tables are still built on the calling thread.
+ * <p/>
+ * The tables and output arrays are reused between regions, so an engine should not be shared across threads and
+ * each returned container is only valid until the next call to process.
+ */
+class HiCCUPSSummedAreaEngine implements HiCCUPSComputeBackend {
+
+    private static final int ROW_BLOCK_SIZE = 16;
+
+    private final int window;
+    private final int matrixSize;
+    private final int peakWidth;
+    private final int maxDistance;
+    private final boolean peaksOnly;
+    private final ForkJoinPool rowPool;
+    private final int stride;
+    private final double[] observedTable;
+    private final double[] expectedTable;
+    private final float[] observedDense, peakDense;
+    private final float[] binBLDense, binDonutDense, binHDense, binVDense;
+    private final float[] expectedBLDense, expectedDonutDense, expectedHDense, expectedVDense;
+    private final float logNorm = (float) Math.log(Math.pow(2.0, .33));
+
+    /**
+     * @param maxDistance farthest distance from the diagonal (in bins) to evaluate, or negative for no limit
+     * @param peaksOnly   skip pixels whose observed value is too low to ever be a peak
+     * @param rowPool     pool to split each region's rows across, or null to evaluate regions on the calling thread
+     */
+    HiCCUPSSummedAreaEngine(int window, int matrixSize, int peakWidth, int maxDistance, boolean peaksOnly,
+                            ForkJoinPool rowPool) {
+        this.window = window;
+        this.matrixSize = matrixSize;
+        this.peakWidth = peakWidth;
+        this.maxDistance = maxDistance;
+        this.peaksOnly = peaksOnly;
+        this.rowPool = rowPool;
+        this.stride = matrixSize + 1;
+        observedTable = new double[stride * stride];
+        expectedTable = new double[stride * stride];
+
+        int outputSize = matrixSize * matrixSize;
+        observedDense = new float[outputSize];
+        peakDense = new float[outputSize];
+        binBLDense = new float[outputSize];
+        binDonutDense = new float[outputSize];
+        binHDense = new float[outputSize];
+        binVDense = new float[outputSize];
+        expectedBLDense = new float[outputSize];
+        expectedDonutDense = new float[outputSize];
+        expectedHDense = new float[outputSize];
+        expectedVDense = new float[outputSize];
+    }
+
+    @Override
+    public GPUOutputContainer process(HiCCUPSRegionData regionData,
+                                      float[] thresholdBL, float[] thresholdDonut, float[] thresholdH, float[] thresholdV) {
+        return process(regionData.getObserved(), regionData.getDistanceExpected(), regionData.getKR1(),
+                regionData.getKR2(), thresholdBL, thresholdDonut, thresholdH, thresholdV,
+                regionData.getRegionContainer().getRowBounds(), regionData.getRegionContainer().getColumnBounds());
+    }
+
+    /**
+     * @param c              normalized observed counts for the region (matrixSize x matrixSize, row-major)
+     * @param d              distance expected vector for the chromosome
+     * @param kr1            normalization vector sliced to the region rows
+     * @param kr2            normalization vector sliced to the region columns
+     * @param rowBounds      see HiCCUPSRegionHandler
+     * @param columnBounds   see HiCCUPSRegionHandler
+     * @return kernel outputs for the central (non-margin) part of the region
+     */
+    GPUOutputContainer process(float[] c, float[] d, float[] kr1, float[] kr2,
+                               float[] thresholdBL, float[] thresholdDonut, float[] thresholdH, float[] thresholdV,
+                               int[] rowBounds, int[] columnBounds) {
+
+        int diff = rowBounds[0] - columnBounds[0];
+        buildTables(c, d, diff);
+
+        int finalWidthX = rowBounds[5] - rowBounds[4];
+        int finalWidthY = columnBounds[5] - columnBounds[4];
+
+        // x2, y2 not inclusive here
+        int x1 = rowBounds[2];
+        int y1 = columnBounds[2];
+
+        float minObserved = Float.NEGATIVE_INFINITY;
+        if (peaksOnly) {
+            minObserved = Math.max(Math.max(minThreshold(thresholdBL), minThreshold(thresholdDonut)),
+                    Math.max(minThreshold(thresholdH), minThreshold(thresholdV)));
+        }
+
+        RegionPass pass = new RegionPass(c, d, kr1, kr2, thresholdBL, thresholdDonut, thresholdH, thresholdV,
+                diff, finalWidthY, x1, y1, minObserved);
+        if (rowPool != null && finalWidthX > ROW_BLOCK_SIZE) {
+            rowPool.invoke(new RowBlock(pass, 0, finalWidthX));
+        } else {
+            pass.processRows(0, finalWidthX);
+        }
+
+        return new GPUOutputContainer(finalWidthX, finalWidthY, 0, finalWidthY, observedDense, peakDense,
+                binBLDense, binDonutDense, binHDense, binVDense,
+                expectedBLDense, expectedDonutDense, expectedHDense, expectedVDense);
+    }
+
+    /**
+     * Inputs of one call to process; rows of the central part can be evaluated independently (each writes its own
+     * slice of the outputs) once the tables are built
+     */
+    private class RegionPass {
+        private final float[] c, d, kr1, kr2;
+        private final float[] thresholdBL, thresholdDonut, thresholdH, thresholdV;
+        private final int diff, finalWidthY, x1, y1;
+        // pixels with an observed value at or below this can't have a positive peak value
+        private final float minObserved;
+
+        RegionPass(float[] c, float[] d, float[] kr1, float[] kr2,
+                   float[] thresholdBL, float[] thresholdDonut, float[] thresholdH, float[] thresholdV,
+                   int diff, int finalWidthY, int x1, int y1, float minObserved) {
+            this.c = c;
+            this.d = d;
+            this.kr1 = kr1;
+            this.kr2 = kr2;
+            this.thresholdBL = thresholdBL;
+            this.thresholdDonut = thresholdDonut;
+            this.thresholdH = thresholdH;
+            this.thresholdV = thresholdV;
+            this.diff = diff;
+            this.finalWidthY = finalWidthY;
+            this.x1 = x1;
+            this.y1 = y1;
+            this.minObserved = minObserved;
+        }
+
+        void processRows(int xStart, int xEnd) {
+            for (int x = xStart; x < xEnd; x++) {
+                for (int y = 0; y < finalWidthY; y++) {
+                    processPixel(x, y);
+                }
+            }
+        }
+
+        private void processPixel(int x, int y) {
+            int bufferWidth = HiCCUPS.regionMargin;
+            int maxIndex = matrixSize - bufferWidth;
+
+            int tRow = x + x1;
+            int tCol = y + y1;
+            int index = x * finalWidthY + y;
+
+            int distance = tCol - tRow - diff;
+            if (distance < 0 || (maxDistance >= 0 && distance > maxDistance)) {
+                skipPixel(index);
+                return;
+            }
+
+            float o = Math.round((double) c[tRow * matrixSize + tCol] * kr1[tRow] * kr2[tCol]);
+            if (o <= minObserved) {
+                skipPixel(index);
+                return;
+            }
+
+            float evalueBL = 0, edistvalueBL = 0;
+            float evalueDonut = 0, edistvalueDonut = 0;
+            float evalueH = 0, edistvalueH = 0;
+            float evalueV = 0, edistvalueV = 0;
+
+            int diagDist = Math.abs(tRow + diff - tCol);
+            int wsize = Math.min(window, (diagDist - 1) / 2);
+            if (wsize <= peakWidth) {
+                wsize = peakWidth + 1;
+            }
+            wsize = Math.min(wsize, bufferWidth);
+
+            if (tRow >= bufferWidth && tRow < maxIndex && tCol >= bufferWidth && tCol < maxIndex) {
+
+                // bottom left box minus the middle peak
+                evalueBL = (float) bottomLeft(observedTable, tRow, tCol, wsize);
+                edistvalueBL = (float) bottomLeft(expectedTable, tRow, tCol, wsize);
+
+                // fix box dimensions
+                while (evalueBL < 16) {
+                    wsize += 1;
+                    evalueBL = (float) bottomLeft(observedTable, tRow, tCol, wsize);
+                    edistvalueBL = (float) bottomLeft(expectedTable, tRow, tCol, wsize);
+                    if (wsize >= bufferWidth) {
+                        break;
+                    }
+                    if (2 * wsize >= diagDist) {
+                        break;
+                    }
+                }
+
+                // donut minus the middle peak
+                evalueDonut = (float) (boxSum(observedTable, tRow - wsize, tRow + wsize + 1, tCol - wsize, tCol + wsize + 1)
+                        - boxSum(observedTable, tRow - peakWidth, tRow + peakWidth + 1, tCol - peakWidth, tCol + peakWidth + 1));
+                edistvalueDonut = (float) (boxSum(expectedTable, tRow - wsize, tRow + wsize + 1, tCol - wsize, tCol + wsize + 1)
+                        - boxSum(expectedTable, tRow - peakWidth, tRow + peakWidth + 1, tCol - peakWidth, tCol + peakWidth + 1));
+
+                // subtract off the cross hairs, accumulate vertical mask
+                for (int i = tRow - wsize; i <= tRow + wsize; i++) {
+                    if (i >= tRow - peakWidth && i <= tRow + peakWidth) continue;
+                    if (!Float.isNaN(c[i * matrixSize + tCol])) {
+                        evalueDonut -= c[i * matrixSize + tCol];
+                        edistvalueDonut -= d[Math.abs(i + diff - tCol)];
+                    }
+                    for (int j = -1; j <= 1; j++) {
+                        evalueV += c[i * matrixSize + tCol + j];
+                        edistvalueV += d[Math.abs(i + diff - tCol - j)];
+                    }
+                }
+
+                // subtract off the cross hairs, accumulate horizontal mask
+                for (int j = tCol - wsize; j <= tCol + wsize; j++) {
+                    if (j >= tCol - peakWidth && j <= tCol + peakWidth) continue;
+                    if (!Float.isNaN(c[tRow * matrixSize + j])) {
+                        evalueDonut -= c[tRow * matrixSize + j];
+                        edistvalueDonut -= d[Math.abs(tRow + diff - j)];
+                    }
+                    for (int i = -1; i <= 1; i++) {
+                        evalueH += c[(tRow + i) * matrixSize + j];
+                        edistvalueH += d[Math.abs(tRow + i + diff - j)];
+                    }
+                }
+            }
+
+            float krProduct = kr1[tRow] * kr2[tCol];
+            float eBL = ((evalueBL * d[diagDist]) / edistvalueBL) * krProduct;
+            float eDonut = ((evalueDonut * d[diagDist]) / edistvalueDonut) * krProduct;
+            float eH = ((evalueH * d[diagDist]) / edistvalueH) * krProduct;
+            float eV = ((evalueV * d[diagDist]) / edistvalueV) * krProduct;
+
+            float bvalueBL = binValue(eBL);
+            float bvalueDonut = binValue(eDonut);
+            float bvalueH = binValue(eH);
+            float bvalueV = binValue(eV);
+
+            expectedBLDense[index] = eBL;
+            expectedDonutDense[index] = eDonut;
+            expectedHDense[index] = eH;
+            expectedVDense[index] = eV;
+            observedDense[index] = o;
+            binBLDense[index] = bvalueBL;
+            binDonutDense[index] = bvalueDonut;
+            binHDense[index] = bvalueH;
+            binVDense[index] = bvalueV;
+
+            float sbtrkt = Math.max(thresholdBL[(int) bvalueBL], thresholdDonut[(int) bvalueDonut]);
+            sbtrkt = Math.max(sbtrkt, thresholdH[(int) bvalueH]);
+            sbtrkt = Math.max(sbtrkt, thresholdV[(int) bvalueV]);
+            peakDense[index] = o - sbtrkt;
+        }
+    }
+
+    /**
+     * Splits the rows of a region in halves until they are at most ROW_BLOCK_SIZE rows
+     */
+    private static class RowBlock extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final RegionPass pass;
+        private final int xStart, xEnd;
+
+        RowBlock(RegionPass pass, int xStart, int xEnd) {
+            this.pass = pass;
+            this.xStart = xStart;
+            this.xEnd = xEnd;
+        }
+
+        @Override
+        protected void compute() {
+            if (xEnd - xStart <= ROW_BLOCK_SIZE) {
+                pass.processRows(xStart, xEnd);
+            } else {
+                int xMid = (xStart + xEnd) >>> 1;
+                invokeAll(new RowBlock(pass, xStart, xMid), new RowBlock(pass, xMid, xEnd));
+            }
+        }
+    }
+
+    /**
+     * @return smallest threshold across all bins (NaN thresholds never let a pixel through, so they're ignored)
+     */
+    private static float minThreshold(float[] threshold) {
+        float min = Float.POSITIVE_INFINITY;
+        for (float val : threshold) {
+            if (val < min) {
+                min = val;
+            }
+        }
+        return min;
+    }
+
+    private void skipPixel(int index) {
+        expectedBLDense[index] = Float.NaN;
+        expectedDonutDense[index] = Float.NaN;
+        expectedHDense[index] = Float.NaN;
+        expectedVDense[index] = Float.NaN;
+        observedDense[index] = Float.NaN;
+        binBLDense[index] = Float.NaN;
+        binDonutDense[index] = Float.NaN;
+        binHDense[index] = Float.NaN;
+        binVDense[index] = Float.NaN;
+        peakDense[index] = Float.NaN;
+    }
+
+    /**
+     * Prefix sums of the observed and distance expected values, only counting entries that are not NaN
+     * and lie strictly above the diagonal (i.e. i + diff - j < 0), as the kernel does for its boxes.
+     */
+    private void buildTables(float[] c, float[] d, int diff) {
+        for (int i = 0; i < matrixSize; i++) {
+            double rowObserved = 0, rowExpected = 0;
+            int prevRow = i * stride;
+            int currRow = prevRow + stride;
+            for (int j = 0; j < matrixSize; j++) {
+                int dist = j - i - diff;
+                double val = c[i * matrixSize + j];
+                if (dist > 0 && !Double.isNaN(val)) {
+                    rowObserved += val;
+                    if (dist < d.length) {
+                        rowExpected += d[dist];
+                    }
+                }
+                observedTable[currRow + j + 1] = observedTable[prevRow + j + 1] + rowObserved;
+                expectedTable[currRow + j + 1] = expectedTable[prevRow + j + 1] + rowExpected;
+            }
+        }
+    }
+
+    /**
+     * bottom left box rows (tRow, tRow + wsize], columns [tCol - wsize, tCol)
+     * minus the middle peak rows (tRow, tRow + peakWidth], columns [tCol - peakWidth, tCol)
+     */
+    private double bottomLeft(double[] table, int tRow, int tCol, int wsize) {
+        return boxSum(table, tRow + 1, tRow + wsize + 1, tCol - wsize, tCol)
+                - boxSum(table, tRow + 1, tRow + peakWidth + 1, tCol - peakWidth, tCol);
+    }
+
+    /**
+     * @return sum of table entries in rows [r1, r2) and columns [c1, c2), clipped to the region
+     */
+    private double boxSum(double[] table, int r1, int r2, int c1, int c2) {
+        r1 = Math.max(r1, 0);
+        c1 = Math.max(c1, 0);
+        r2 = Math.min(r2, matrixSize);
+        c2 = Math.min(c2, matrixSize);
+        if (r2 <= r1 || c2 <= c1) return 0;
+        return table[r2 * stride + c2] - table[r1 * stride + c2] - table[r2 * stride + c1] + table[r1 * stride + c1];
+    }
+
+    private float binValue(float e) {
+        float bvalue = 0;
+        if (!Float.isNaN(e) && !Float.isInfinite(e)) {
+            if (e <= 1) {
+                bvalue = 0;
+            } else {
+                bvalue = (float) Math.floor(Math.log(e) / logNorm);
+            }
+        }
+        return Math.min(bvalue, HiCCUPS.w1 - 1);
+    }
+}
@@ -0,0 +1,483 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011-2021 Broad Institute, Aiden Lab, Rice University, Baylor College of Medicine
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+
+package juicebox.tools.utils.juicer.hiccups;
+
+import juicebox.tools.clt.juicer.HiCCUPS;
+import juicebox.tools.utils.common.MatrixTools;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Manual check (like GPUTesting, not run by the build) of the summed-area CPU kernel against the CPU kernel it
+ * replaced, which is kept below as it was in GPUController. Each case builds one region that drives a different
+ * part of the kernel: the widening of the bottom left box, the masks on the diagonal, a region away from the
+ * diagonal and rows of missing values.
+ * <p/>
+ * Observed values have to be identical. Expected values only agree to within float rounding (relative, or absolute
+ * below 1 where they all fall in bin 0), since the tables are summed in double where the old kernel summed each box
+ * in float; a box with no contacts at all is NaN where the old kernel could leave +/-Inf. So a lambda bin may be one
+ * off, but only for an expected value sitting on a log-bin boundary.
+ */
+class HiCCUPSSummedAreaEngineTesting {
+
+    private static final double RELATIVE_TOLERANCE = 1e-4;
+    private static final String[] OUTPUT_NAMES = {"observed", "expectedBL", "expectedDonut", "expectedH",
+            "expectedV", "binBL", "binDonut", "binH", "binV"};
+
+    public static void test() throws IOException {
+        ForkJoinPool rowPool = new ForkJoinPool(4);
+        try {
+            // peak width 1, window 3 at 25K; peak width 4, window 7 at 5K (see HiCCUPSConfiguration)
+            runCase("dense contacts on the diagonal", 100, 7, 4, 0, 50, 0.5, 0, null);
+            runCase("sparse contacts on the diagonal, bottom left box widened", 100, 7, 4, 0, 3, 0.8, 0, null);
+            runCase("small peak and window", 80, 3, 1, 0, 10, 0.5, 0, null);
+            runCase("region away from the diagonal", 100, 7, 4, -150, 50, 0.5, 0, null);
+            runCase("rows and columns of missing values", 100, 7, 4, 0, 50, 0.5, 6, null);
+            runCase("rows split across a pool", 100, 7, 4, -30, 20, 0.5, 0, rowPool);
+        } finally {
+            rowPool.shutdown();
+        }
+    }
+
+    /**
+     * @param diff          rowBounds[0] - columnBounds[0] of the region
+     * @param zeroFraction  fraction of pixels without contacts
+     * @param numNaNLines   number of rows and of columns with no normalization (all NaN)
+     */
+    private static void runCase(String name, int matrixSize, int window, int peakWidth, int diff, int maxCount,
+                                double zeroFraction, int numNaNLines, ForkJoinPool rowPool) throws IOException {
+        Random random = new Random(name.hashCode());
+        int n = matrixSize;
+        float[] c = new float[n * n];
+        for (int k = 0; k < c.length; k++) {
+            if (random.nextDouble() >= zeroFraction) {
+                c[k] = random.nextInt(maxCount) * 0.9f;
+            }
+        }
+        for (int line = 0; line < numNaNLines; line++) {
+            int row = random.nextInt(n), column = random.nextInt(n);
+            for (int k = 0; k < n; k++) {
+                c[row * n + k] = Float.NaN;
+                c[k * n + column] = Float.NaN;
+            }
+        }
+        float[] d = new float[2000];
+        for (int k = 0; k < d.length; k++) {
+            d[k] = 100f / (k + 1);
+        }
+        float[] kr1 = new float[n], kr2 = new float[n];
+        for (int k = 0; k < n; k++) {
+            kr1[k] = 1 + random.nextFloat();
+            kr2[k] = 1 + random.nextFloat();
+        }
+        float[] thresholds = new float[HiCCUPS.w1];
+        for (int k = 0; k < thresholds.length; k++) {
+            thresholds[k] = random.nextInt(30);
+        }
+        int margin = HiCCUPS.regionMargin;
+        int[] rowBounds = {200, 200 + n, margin, margin, 200 + margin, 200 + n - margin};
+        int[] columnBounds = {200 - diff, 200 - diff + n, margin, margin, 200 - diff + margin, 200 - diff + n - margin};
+
+        double[][] c2D = new double[n][n];
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < n; j++) {
+                c2D[i][j] = c[i * n + j];
+            }
+        }
+        GPUOutputContainer baseline = new BaselineCPUKernel(window, n, peakWidth).runCPUVersion(c2D, d, kr1, kr2,
+                new float[]{rowBounds[0]}, new float[]{columnBounds[0]}, thresholds, thresholds, thresholds,
+                thresholds, rowBounds, columnBounds);
+        GPUOutputContainer summedArea = new HiCCUPSSummedAreaEngine(window, n, peakWidth, -1, false, rowPool)
+                .process(c, d, kr1, kr2, thresholds, thresholds, thresholds, thresholds, rowBounds, columnBounds);
+
+        int numColumns = columnBounds[5] - columnBounds[4];
+        int relativeDiagonal = columnBounds[4] - rowBounds[4];
+        float[][] expected = kernelOutputs(baseline);
+        float[][] actual = kernelOutputs(summedArea);
+        float logNorm = (float) Math.log(Math.pow(2.0, .33));
+        int numBoundaryBins = 0;
+        for (int f = 0; f < expected.length; f++) {
+            for (int k = 0; k < expected[f].length; k++) {
+                int i = k / numColumns, j = k % numColumns;
+                // below the diagonal, which the summed-area kernel does not evaluate
+                if (j - i + relativeDiagonal < 0) continue;
+
+                float x = expected[f][k], y = actual[f][k];
+                if (Float.compare(x, y) == 0) continue;
+                boolean isExpected = f >= 1 && f <= 4;
+                if (isExpected && (Float.isNaN(y) ? Float.isNaN(x) || Float.isInfinite(x)
+                        : Math.abs(x - y) <= RELATIVE_TOLERANCE * Math.max(1, Math.abs(x)))) {
+                    continue;
+                }
+                if (f >= 5 && Math.abs(x - y) == 1) {
+                    // the bin is floor(log(e) / lognorm); one off is only allowed right at a boundary
+                    double logBin = Math.log(expected[f - 4][k]) / logNorm;
+                    if (Math.abs(logBin - Math.rint(logBin)) <= RELATIVE_TOLERANCE / logNorm) {
+                        numBoundaryBins++;
+                        continue;
+                    }
+                }
+                throw new IllegalStateException(name + ": " + OUTPUT_NAMES[f] + " at (" + i + ", " + j + ") is "
+                        + y + " instead of " + x);
+            }
+        }
+        System.out.println(name + ": matches the old CPU kernel" +
+                (numBoundaryBins > 0 ? " (" + numBoundaryBins + " bins one off on a log-bin boundary)" : ""));
+    }
+
+    /**
+     * observed, expected BL, donut, H, V, then bins BL, donut, H, V of each pixel, as cached between passes
+     */
+    private static float[][] kernelOutputs(GPUOutputContainer output) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        output.writeKernelOutputs(new DataOutputStream(bytes));
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        int size = in.readInt() * in.readInt();
+        float[][] values = new float[OUTPUT_NAMES.length][size];
+        for (int f = 0; f < values.length; f++) {
+            for (int k = 0; k < size; k++) {
+                values[f][k] = f < 5 ? in.readFloat() : in.readByte();
+            }
+        }
+        return values;
+    }
+
+    private static float[] flatten(float[][] matrix) {
+        int numColumns = matrix[0].length;
+        float[] flat = new float[matrix.length * numColumns];
+        for (int i = 0; i < matrix.length; i++) {
+            System.arraycopy(matrix[i], 0, flat, i * numColumns, numColumns);
+        }
+        return flat;
+    }
+
+    /**
+     * CPU version of the kernel from before the summed-area tables, unchanged apart from the container returned
+     */
+    private static class BaselineCPUKernel {
+
+        private final int windowCPU;
+        private final int matrixSizeCPU;
+        private final int peakWidthCPU;
+
+        BaselineCPUKernel(int window, int matrixSize, int peakWidth) {
+            windowCPU = window;
+            matrixSizeCPU = matrixSize;
+            peakWidthCPU = peakWidth;
+        }
+
+        GPUOutputContainer runCPUVersion(double[][] c, float[] d,
+                                         float[] kr1, float[] kr2,
+                                         float[] bound1, float[] bound3,
+                                         float[] thresholdBL, float[] thresholdDonut,
+                                         float[] thresholdH, float[] thresholdV,
+                                         int[] rowBounds, int[] columnBounds) {
+
+            float[][] observedDenseCPU = new float[matrixSizeCPU][matrixSizeCPU];
+            float[][] peakDenseCPU = new float[matrixSizeCPU][matrixSizeCPU];
+            float[][] binBLDenseCPU = new float[matrixSizeCPU][matrixSizeCPU];
+            float[][] binDonutDenseCPU = new float[matrixSizeCPU][matrixSizeCPU];
+            float[][] binHDenseCPU = new float[matrixSizeCPU][matrixSizeCPU];
+            float[][] binVDenseCPU = new float[matrixSizeCPU][matrixSizeCPU];
+            float[][] expectedBLDenseCPU = new float[matrixSizeCPU][matrixSizeCPU];
+            float[][] expectedDonutDenseCPU = new float[matrixSizeCPU][matrixSizeCPU];
+            float[][] expectedHDenseCPU = new float[matrixSizeCPU][matrixSizeCPU];
+            float[][] expectedVDenseCPU = new float[matrixSizeCPU][matrixSizeCPU];
+
+            //int t_col = threadIdx.x + blockIdx.x * blockDim.x;\n" +
+            //"    int t_row = threadIdx.y + blockIdx.y * blockDim.y;\n" +
+
+            for (int t_row = HiCCUPS.regionMargin; t_row < matrixSizeCPU - HiCCUPS.regionMargin; t_row++) {
+                for (int t_col = HiCCUPS.regionMargin; t_col < matrixSizeCPU - HiCCUPS.regionMargin; t_col++) {
+
+                    // Evalue is used to store the element of the matrix
+
+
+                    // that is computed by the thread
+                    float Evalue_bl = 0;
+                    float Edistvalue_bl = 0;
+                    float Evalue_donut = 0;
+                    float Edistvalue_donut = 0;
+                    float Evalue_h = 0;
+                    float Edistvalue_h = 0;
+                    float Evalue_v = 0;
+                    float Edistvalue_v = 0;
+                    float e_bl = 0;
+                    float e_donut = 0;
+                    float e_h = 0;
+                    float e_v = 0;
+                    float o = 0;
+                    float sbtrkt = 0;
+                    float bvalue_bl = 0;
+                    float bvalue_donut = 0;
+                    float bvalue_h = 0;
+                    float bvalue_v = 0;
+
+                    int wsize = windowCPU;
+                    int msize = matrixSizeCPU;
+                    int pwidth = peakWidthCPU;
+                    int buffer_width = HiCCUPS.regionMargin;
+
+                    int diff = (int) (bound1[0] - bound3[0]);
+                    int diagDist = Math.abs(t_row + diff - t_col);
+                    int maxIndex = msize - buffer_width;
+
+                    wsize = Math.min(wsize, (diagDist - 1) / 2);
+                    if (wsize <= pwidth) {
+                        wsize = pwidth + 1;
+                    }
+                    wsize = Math.min(wsize, buffer_width);
+
+                    // only run if within central window (not in data buffer margins)
+                    if (t_row >= buffer_width && t_row < maxIndex && t_col >= buffer_width && t_col < maxIndex) {
+
+                        // calculate initial bottom left box
+                        for (int i = t_row + 1; i <= t_row + wsize; i++) {
+                            for (int j = t_col - wsize; j < t_col; j++) {
+                                if (!Double.isNaN(c[i][j])) {
+                                    if (i + diff - j < 0) {
+                                        Evalue_bl += c[i][j];
+                                        Edistvalue_bl += d[Math.abs(i + diff - j)];
+                                    }
+                                }
+                            }
+                        }
+                        //Subtract off the middle peak
+                        for (int i = t_row + 1; i <= t_row + pwidth; i++) {
+                            for (int j = t_col - pwidth; j < t_col; j++) {
+                                if (!Double.isNaN(c[i][j])) {
+                                    if (i + diff - j < 0) {
+                                        Evalue_bl -= c[i][j];
+                                        Edistvalue_bl -= d[Math.abs(i + diff - j)];
+                                    }
+                                }
+                            }
+                        }
+
+                        //fix box dimensions
+                        while (Evalue_bl < 16) {
+                            Evalue_bl = 0;
+                            Edistvalue_bl = 0;
+                            wsize += 1;
+                            //dvisor = powf(wsize,2.0) - powf(pwidth,2.0);
+                            for (int i = t_row + 1; i <= t_row + wsize; i++) {
+                                for (int j = t_col - wsize; j < t_col; j++) {
+                                    if (!Double.isNaN(c[i][j])) {
+                                        if (i + diff - j < 0) {
+                                            Evalue_bl += c[i][j];
+                                            int distVal = Math.abs(i + diff - j);
+                                            Edistvalue_bl += d[distVal];
+                                            if (i >= t_row + 1) {
+                                                if (i < t_row + pwidth + 1) {
+                                                    if (j >= t_col - pwidth) {
+                                                        if (j < t_col) {
+                                                            Evalue_bl -= c[i][j];
+                                                            Edistvalue_bl -= d[distVal];
+                                                        }
+                                                    }
+                                                }
+                                            }
+                                        }
+                                    }
+                                }
+                            }
+
+                            if (wsize >= buffer_width) {
+                                break;
+                            }
+                            if (2 * wsize >= diagDist) {
+                                break;
+                            }
+                        }
+
+                        // calculate donut
+                        for (int i = t_row - wsize; i <= t_row + wsize; ++i) {
+                            for (int j = t_col - wsize; j <= t_col + wsize; ++j) {
+                                if (!Double.isNaN(c[i][j])) {
+                                    if (i + diff - j < 0) {
+                                        Evalue_donut += c[i][j];
+                                        Edistvalue_donut += d[Math.abs(i + diff - j)];
+                                    }
+                                }
+                            }
+                        }
+                        //Subtract off the middle peak
+                        for (int i = t_row - pwidth; i <= t_row + pwidth; ++i) {
+                            for (int j = t_col - pwidth; j <= t_col + pwidth; ++j) {
+                                if (!Double.isNaN(c[i][j])) {
+                                    if (i + diff - j < 0) {
+                                        Evalue_donut -= c[i][j];
+                                        Edistvalue_donut -= d[Math.abs(i + diff - j)];
+                                    }
+                                }
+                            }
+                        }
+                        //Subtract off the cross hairs left side
+                        for (int i = t_row - wsize; i < t_row - pwidth; i++) {
+                            if (!Double.isNaN(c[i][t_col])) {
+                                Evalue_donut -= c[i][t_col];
+                                Edistvalue_donut -= d[Math.abs(i + diff - t_col)];
+                            }
+                            for (int j = -1; j <= 1; j++) {
+                                Evalue_v += c[i][t_col + j];
+                                Edistvalue_v += d[Math.abs(i + diff - t_col - j)];
+                            }
+                        }
+                        //Subtract off the cross hairs right side
+                        for (int i = t_row + pwidth + 1; i <= t_row + wsize; ++i) {
+                            if (!Double.isNaN(c[i][t_col])) {
+                                Evalue_donut -= c[i][t_col];
+                                Edistvalue_donut -= d[Math.abs(i + diff - t_col)];
+                            }
+                            for (int j = -1; j <= 1; ++j) {
+                                Evalue_v += c[i][t_col + j];
+                                Edistvalue_v += d[Math.abs(i + diff - t_col - j)];
+                            }
+                        }
+                        //Subtract off the cross hairs top side
+                        for (int j = t_col - wsize; j < t_col - pwidth; ++j) {
+                            if (!Double.isNaN(c[t_row][j])) {
+                                Evalue_donut -= c[t_row][j];
+                                Edistvalue_donut -= d[Math.abs(t_row + diff - j)];
+                            }
+                            for (int i = -1; i <= 1; ++i) {
+                                Evalue_h += c[t_row + i][j];
+                                Edistvalue_h += d[Math.abs(t_row + i + diff - j)];
+                            }
+                        }
+                        //Subtract off the cross hairs bottom side
+                        for (int j = t_col + pwidth + 1; j <= t_col + wsize; ++j) {
+                            if (!Double.isNaN(c[t_row][j])) {
+                                Evalue_donut -= c[t_row][j];
+                                Edistvalue_donut -= d[Math.abs(t_row + diff - j)];
+                            }
+                            for (int i = -1; i <= 1; ++i) {
+                                Evalue_h += c[t_row + i][j];
+                                Edistvalue_h += d[Math.abs(t_row + i + diff - j)];
+                            }
+                        }
+                    }
+
+                    e_bl = ((Evalue_bl * d[diagDist]) / Edistvalue_bl) * kr1[t_row] * kr2[t_col];
+                    e_donut = ((Evalue_donut * d[diagDist]) / Edistvalue_donut) * kr1[t_row] * kr2[t_col];
+                    e_h = ((Evalue_h * d[diagDist]) / Edistvalue_h) * kr1[t_row] * kr2[t_col];
+                    e_v = ((Evalue_v * d[diagDist]) / Edistvalue_v) * kr1[t_row] * kr2[t_col];
+
+                    float lognorm = (float) Math.log(Math.pow(2.0, .33));
+                    if (!Float.isNaN(e_bl) && !Float.isInfinite(e_bl)) {
+                        if (e_bl <= 1) {
+                            bvalue_bl = 0;
+                        } else {
+                            bvalue_bl = (float) Math.floor(Math.log(e_bl) / lognorm);
+                        }
+                    }
+                    if (!Float.isNaN(e_donut) && !Float.isInfinite(e_donut)) {
+                        if (e_donut <= 1) {
+                            bvalue_donut = 0;
+                        } else {
+                            bvalue_donut = (float) Math.floor(Math.log(e_donut) / lognorm);
+                        }
+                    }
+                    if (!Float.isNaN(e_h) && !Float.isInfinite(e_h)) {
+                        if (e_h <= 1) {
+                            bvalue_h = 0;
+                        } else {
+                            bvalue_h = (float) Math.floor(Math.log(e_h) / lognorm);
+                        }
+                    }
+                    if (!Float.isNaN(e_v) && !Float.isInfinite(e_v)) {
+                        if (e_v <= 1) {
+                            bvalue_v = 0;
+                        } else {
+                            bvalue_v = (float) Math.floor(Math.log(e_v) / lognorm);
+                        }
+                    }
+
+                    // todo why are bin values exceeding w1 in cpu version?
+                    // do they exceed in gpu version as well
+                    bvalue_bl = Math.min(bvalue_bl, HiCCUPS.w1 - 1);
+                    bvalue_donut = Math.min(bvalue_donut, HiCCUPS.w1 - 1);
+                    bvalue_h = Math.min(bvalue_h, HiCCUPS.w1 - 1);
+                    bvalue_v = Math.min(bvalue_v, HiCCUPS.w1 - 1);
+
+                    // Write the matrix to device memory;
+                    // each thread writes one element
+                    expectedBLDenseCPU[t_row][t_col] = e_bl;
+                    expectedDonutDenseCPU[t_row][t_col] = e_donut;
+                    expectedHDenseCPU[t_row][t_col] = e_h;
+                    expectedVDenseCPU[t_row][t_col] = e_v;
+                    o = Math.round(c[t_row][t_col] * kr1[t_row] * kr2[t_col]);
+                    observedDenseCPU[t_row][t_col] = o;
+                    binBLDenseCPU[t_row][t_col] = bvalue_bl;
+                    binDonutDenseCPU[t_row][t_col] = bvalue_donut;
+                    binHDenseCPU[t_row][t_col] = bvalue_h;
+                    binVDenseCPU[t_row][t_col] = bvalue_v;
+                    //System.out.println("thresholdBL "+thresholdBL.length+" thresholdDonut "+thresholdDonut.length);
+                    //System.out.println("a "+bvalue_bl+" b "+bvalue_donut);
+
+                    sbtrkt = Math.max(thresholdBL[(int) bvalue_bl], thresholdDonut[(int) bvalue_donut]);
+                    sbtrkt = Math.max(sbtrkt, thresholdH[(int) bvalue_h]);
+                    sbtrkt = Math.max(sbtrkt, thresholdV[(int) bvalue_v]);
+                    peakDenseCPU[t_row][t_col] = o - sbtrkt;
+                }
+            }
+
+            // x2, y2 not inclusive here
+            int finalWidthX = rowBounds[5] - rowBounds[4];
+            int finalWidthY = columnBounds[5] - columnBounds[4];
+
+            // x2, y2 not inclusive here
+            int x1 = rowBounds[2];
+            int y1 = columnBounds[2];
+            int x2 = x1 + finalWidthX;
+            int y2 = y1 + finalWidthY;
+
+            //System.out.println("flat = "+flattenedSize+" n = "+matrixSize+" x1 = "+x1+" x2 = "+x2+" y1 = "+y1+" y2 ="+y2);
+
+            observedDenseCPU = MatrixTools.extractLocalMatrixRegion(observedDenseCPU, x1, x2, y1, y2);
+            peakDenseCPU = MatrixTools.extractLocalMatrixRegion(peakDenseCPU, x1, x2, y1, y2);
+            binBLDenseCPU = MatrixTools.extractLocalMatrixRegion(binBLDenseCPU, x1, x2, y1, y2);
+            binDonutDenseCPU = MatrixTools.extractLocalMatrixRegion(binDonutDenseCPU, x1, x2, y1, y2);
+            binHDenseCPU = MatrixTools.extractLocalMatrixRegion(binHDenseCPU, x1, x2, y1, y2);
+            binVDenseCPU = MatrixTools.extractLocalMatrixRegion(binVDenseCPU, x1, x2, y1, y2);
+            expectedBLDenseCPU = MatrixTools.extractLocalMatrixRegion(expectedBLDenseCPU, x1, x2, y1, y2);
+            expectedDonutDenseCPU = MatrixTools.extractLocalMatrixRegion(expectedDonutDenseCPU, x1, x2, y1, y2);
+            expectedHDenseCPU = MatrixTools.extractLocalMatrixRegion(expectedHDenseCPU, x1, x2, y1, y2);
+            expectedVDenseCPU = MatrixTools.extractLocalMatrixRegion(expectedVDenseCPU, x1, x2, y1, y2);
+
+            return new GPUOutputContainer(finalWidthX, finalWidthY, 0, finalWidthY, flatten(observedDenseCPU),
+                    flatten(peakDenseCPU), flatten(binBLDenseCPU), flatten(binDonutDenseCPU), flatten(binHDenseCPU),
+                    flatten(binVDenseCPU), flatten(expectedBLDenseCPU), flatten(expectedDonutDenseCPU),
+                    flatten(expectedHDenseCPU), flatten(expectedVDenseCPU));
+        }
+    }
+}
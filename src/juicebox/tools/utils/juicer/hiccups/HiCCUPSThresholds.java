@@ -0,0 +1,189 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011-2021 Broad Institute, Aiden Lab, Rice University, Baylor College of Medicine
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+
+package juicebox.tools.utils.juicer.hiccups;
+
+import com.google.common.primitives.Doubles;
+import com.google.common.primitives.Floats;
+import juicebox.tools.utils.common.ArrayTools;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+/**
+ * Per lambda-bin thresholds and fdr logs for the bottom left, donut, horizontal and vertical masks,
+ * as derived from the HiCCUPS histograms of the first pass
+ */
+public class HiCCUPSThresholds {
+
+    private final int w1, w2;
+    private final float[][] fdrLogBL, fdrLogDonut, fdrLogH, fdrLogV;
+    private final float[] thresholdBL, thresholdDonut, thresholdH, thresholdV;
+
+    public HiCCUPSThresholds(int w1, int w2) {
+        this.w1 = w1;
+        this.w2 = w2;
+        fdrLogBL = new float[w1][w2];
+        fdrLogDonut = new float[w1][w2];
+        fdrLogH = new float[w1][w2];
+        fdrLogV = new float[w1][w2];
+        thresholdBL = ArrayTools.newValueInitializedFloatArray(w1, (float) w2);
+        thresholdDonut = ArrayTools.newValueInitializedFloatArray(w1, (float) w2);
+        thresholdH = ArrayTools.newValueInitializedFloatArray(w1, (float) w2);
+        thresholdV = ArrayTools.newValueInitializedFloatArray(w1, (float) w2);
+    }
+
+    public void calculate(HiCCUPSHistograms histograms, double fdr) {
+        long[][] rcsHistBL = ArrayTools.makeReverse2DCumulativeArray(histograms.getBL());
+        long[][] rcsHistDonut = ArrayTools.makeReverse2DCumulativeArray(histograms.getDonut());
+        long[][] rcsHistH = ArrayTools.makeReverse2DCumulativeArray(histograms.getH());
+        long[][] rcsHistV = ArrayTools.makeReverse2DCumulativeArray(histograms.getV());
+
+        for (int i = 0; i < w1; i++) {
+            float[] unitPoissonPMF = Floats.toArray(Doubles.asList(ArrayTools.generatePoissonPMF(i, w2)));
+            HiCCUPSUtils.calculateThresholdAndFDR(i, w2, fdr, unitPoissonPMF, rcsHistBL, thresholdBL, fdrLogBL);
+            HiCCUPSUtils.calculateThresholdAndFDR(i, w2, fdr, unitPoissonPMF, rcsHistDonut, thresholdDonut, fdrLogDonut);
+            HiCCUPSUtils.calculateThresholdAndFDR(i, w2, fdr, unitPoissonPMF, rcsHistH, thresholdH, fdrLogH);
+            HiCCUPSUtils.calculateThresholdAndFDR(i, w2, fdr, unitPoissonPMF, rcsHistV, thresholdV, fdrLogV);
+        }
+    }
+
+    /**
+     * Rough confidence bound for thresholds calculated from sampled histograms: each reverse cumulative count is
+     * moved by z standard deviations (taking the variance of a count as varianceFactor times its value) and the
+     * spread of the resulting thresholds is taken over all lambda bins with data
+     *
+     * @return largest threshold spread for the bottom left, donut, horizontal and vertical masks
+     */
+    public int[] estimateSamplingError(HiCCUPSHistograms histograms, double fdr, double varianceFactor, double z) {
+        long[][][] rcsHists = new long[][][]{ArrayTools.makeReverse2DCumulativeArray(histograms.getBL()),
+                ArrayTools.makeReverse2DCumulativeArray(histograms.getDonut()),
+                ArrayTools.makeReverse2DCumulativeArray(histograms.getH()),
+                ArrayTools.makeReverse2DCumulativeArray(histograms.getV())};
+        int[] maxError = new int[rcsHists.length];
+        for (int i = 0; i < w1; i++) {
+            float[] unitPoissonPMF = Floats.toArray(Doubles.asList(ArrayTools.generatePoissonPMF(i, w2)));
+            for (int m = 0; m < rcsHists.length; m++) {
+                long[] rcsHist = rcsHists[m][i];
+                if (rcsHist[0] <= 0) continue;
+                float[] rcsExpected = ArrayTools.makeReverseCumulativeArray(
+                        ArrayTools.scalarMultiplyArray(rcsHist[0], unitPoissonPMF));
+                int lowIndex = firstPassingIndex(rcsHist, rcsExpected, fdr, varianceFactor, z);
+                int highIndex = firstPassingIndex(rcsHist, rcsExpected, fdr, varianceFactor, -z);
+                maxError[m] = Math.max(maxError[m], highIndex - lowIndex);
+            }
+        }
+        return maxError;
+    }
+
+    private int firstPassingIndex(long[] rcsHist, float[] rcsExpected, double fdr, double varianceFactor, double z) {
+        for (int j = 0; j < w2; j++) {
+            if (fdr * rcsExpected[j] <= rcsHist[j] + z * Math.sqrt(varianceFactor * rcsHist[j])) {
+                return j;
+            }
+        }
+        return w2;
+    }
+
+    /**
+     * Same layout as the fdr_thresholds file written by HiCCUPS
+     */
+    public void print(PrintWriter outputFDR) {
+        for (int i = 0; i < w1; i++) {
+            outputFDR.println(i + "\t" + thresholdBL[i] + "\t" + thresholdDonut[i] + "\t" + thresholdH[i] +
+                    "\t" + thresholdV[i]);
+        }
+    }
+
+    public void write(DataOutputStream out) throws IOException {
+        out.writeInt(w1);
+        out.writeInt(w2);
+        for (float[] thresholds : new float[][]{thresholdBL, thresholdDonut, thresholdH, thresholdV}) {
+            for (float value : thresholds) {
+                out.writeFloat(value);
+            }
+        }
+        for (float[][] fdrLog : new float[][][]{fdrLogBL, fdrLogDonut, fdrLogH, fdrLogV}) {
+            for (float[] row : fdrLog) {
+                for (float value : row) {
+                    out.writeFloat(value);
+                }
+            }
+        }
+    }
+
+    public static HiCCUPSThresholds read(DataInputStream in) throws IOException {
+        HiCCUPSThresholds thresholds = new HiCCUPSThresholds(in.readInt(), in.readInt());
+        for (float[] values : new float[][]{thresholds.thresholdBL, thresholds.thresholdDonut,
+                thresholds.thresholdH, thresholds.thresholdV}) {
+            for (int i = 0; i < values.length; i++) {
+                values[i] = in.readFloat();
+            }
+        }
+        for (float[][] fdrLog : new float[][][]{thresholds.fdrLogBL, thresholds.fdrLogDonut,
+                thresholds.fdrLogH, thresholds.fdrLogV}) {
+            for (float[] row : fdrLog) {
+                for (int j = 0; j < row.length; j++) {
+                    row[j] = in.readFloat();
+                }
+            }
+        }
+        return thresholds;
+    }
+
+    public float[] getThresholdBL() {
+        return thresholdBL;
+    }
+
+    public float[] getThresholdDonut() {
+        return thresholdDonut;
+    }
+
+    public float[] getThresholdH() {
+        return thresholdH;
+    }
+
+    public float[] getThresholdV() {
+        return thresholdV;
+    }
+
+    public float[][] getFdrLogBL() {
+        return fdrLogBL;
+    }
+
+    public float[][] getFdrLogDonut() {
+        return fdrLogDonut;
+    }
+
+    public float[][] getFdrLogH() {
+        return fdrLogH;
+    }
+
+    public float[][] getFdrLogV() {
+        return fdrLogV;
+    }
+}
@@ -0,0 +1,243 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011-2021 Broad Institute, Aiden Lab, Rice University, Baylor College of Medicine
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+
+package juicebox.tools.utils.juicer.hiccups;
+
+import juicebox.HiCGlobals;
+import juicebox.tools.clt.juicer.HiCCUPS;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Picks the HiCCUPS matrix size (tile width) for a resolution.
+ * <p/>
+ * Only the central matrixSize - 2 * regionMargin bins of a tile produce results, so small tiles repeat a lot of
+ * margin work; on the CPU, large tiles stop fitting in the caches and every pixel gets slower. Each candidate size
+ * is scored by its margin overhead times a penalty for where the per-thread working set lands (L2, L3 or memory),
+ * growing with how far the working sets of all threads overflow the L3, after dropping sizes whose buffers would not fit in the free heap or that are wider than any chromosome at this
+ * resolution. On the CPU the penalty can instead be measured by timing the summed-area engine on synthetic tiles.
+ * <p/>
+ * The GPU limit is not known from here, so for the GPU version the default size is only ever lowered.
+ */
+public class HiCCUPSTileSizeTuner {
+
+    private static final int[] CANDIDATE_SIZES = {128, 192, 256, 384, 512, 768, 1024, 1536, 2048};
+    private static final int DEFAULT_SIZE = 512;
+    private static final long CPU_BYTES_PER_PIXEL = 60;      // input, two summed-area tables, ten outputs
+    private static final long GPU_BYTES_PER_PIXEL = 44;      // input, ten outputs
+    private static final long PREFETCH_BYTES_PER_PIXEL = 4;  // input of each region waiting for the kernel
+    private static final double L3_PENALTY = 1.25, MEMORY_PENALTY = 2;
+    private static final long DEFAULT_L2_SIZE = 1024 * 1024, DEFAULT_L3_SIZE = 8 * 1024 * 1024;
+    private static final int CALIBRATION_PIXELS = 1 << 20;
+
+    private final boolean useCPUVersionHiCCUPS;
+    private final int numThreads;
+    private final int numPrefetchedRegions;
+    private final long l2Size, l3Size;
+
+    public HiCCUPSTileSizeTuner(boolean useCPUVersionHiCCUPS, int numThreads, int numPrefetchedRegions) {
+        this(useCPUVersionHiCCUPS, numThreads, numPrefetchedRegions, readCacheSize(2, DEFAULT_L2_SIZE),
+                readCacheSize(3, DEFAULT_L3_SIZE));
+    }
+
+    HiCCUPSTileSizeTuner(boolean useCPUVersionHiCCUPS, int numThreads, int numPrefetchedRegions,
+                         long l2Size, long l3Size) {
+        this.useCPUVersionHiCCUPS = useCPUVersionHiCCUPS;
+        this.numThreads = Math.max(numThreads, 1);
+        this.numPrefetchedRegions = Math.max(numPrefetchedRegions, 1);
+        this.l2Size = l2Size;
+        this.l3Size = l3Size;
+    }
+
+    /**
+     * @param maxChromosomeWidth width (in bins) of the largest chromosome at this resolution
+     * @param calibrate          time the candidates instead of using the cache model (CPU version only)
+     */
+    public int chooseMatrixSize(HiCCUPSConfiguration conf, int maxChromosomeWidth, boolean calibrate) {
+        Runtime runtime = Runtime.getRuntime();
+        long heapHeadroom = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+        long bytesPerPixel = numThreads * (useCPUVersionHiCCUPS ? CPU_BYTES_PER_PIXEL : GPU_BYTES_PER_PIXEL)
+                + numPrefetchedRegions * PREFETCH_BYTES_PER_PIXEL;
+
+        if (useCPUVersionHiCCUPS && calibrate) {
+            // untimed run so the first candidate doesn't pay for the JIT
+            timePerUsefulPixel(conf, CANDIDATE_SIZES[0]);
+        }
+
+        int bestSize = CANDIDATE_SIZES[0];
+        double bestCost = Double.MAX_VALUE;
+        for (int size : CANDIDATE_SIZES) {
+            if (size > CANDIDATE_SIZES[0]) {
+                if (!useCPUVersionHiCCUPS && size > DEFAULT_SIZE) break;
+                // leave half of the heap for pixel tables, histograms etc.
+                if ((long) size * size * bytesPerPixel > heapHeadroom / 2) break;
+                // the previous size already covered the widest chromosome
+                if (previousSize(size) - 2 * HiCCUPS.regionMargin >= maxChromosomeWidth) break;
+            }
+
+            double cost;
+            if (useCPUVersionHiCCUPS && calibrate) {
+                cost = timePerUsefulPixel(conf, size);
+            } else {
+                cost = marginOverhead(size) * (useCPUVersionHiCCUPS ? cachePenalty(size) : 1);
+            }
+            if (HiCGlobals.printVerboseComments) {
+                System.out.println("Matrix size " + size + " at " + conf.getResolution() + ": relative cost " + cost);
+            }
+            if (cost < bestCost) {
+                bestCost = cost;
+                bestSize = size;
+            }
+        }
+        return bestSize;
+    }
+
+    private static int previousSize(int size) {
+        int index = Arrays.binarySearch(CANDIDATE_SIZES, size);
+        return CANDIDATE_SIZES[Math.max(index - 1, 0)];
+    }
+
+    private static double marginOverhead(int size) {
+        double usefulWidth = size - 2 * HiCCUPS.regionMargin;
+        return ((double) size * size) / (usefulWidth * usefulWidth);
+    }
+
+    /**
+     * Out of the L3, the penalty grows with the square root of the overflow, so that a size whose working set fits
+     * in the L3 always scores better than the larger sizes that don't, despite their lower margin overhead
+     */
+    double cachePenalty(int size) {
+        long workingSet = (long) size * size * CPU_BYTES_PER_PIXEL;
+        if (workingSet <= l2Size) return 1;
+        if (workingSet * numThreads <= l3Size) return L3_PENALTY;
+        return MEMORY_PENALTY * Math.sqrt((double) workingSet * numThreads / l3Size);
+    }
+
+    /**
+     * @return whether the working sets of all threads at this size fit in the L3
+     */
+    boolean fitsInCache(int size) {
+        return (long) size * size * CPU_BYTES_PER_PIXEL * numThreads <= l3Size;
+    }
+
+    /**
+     * Run the summed-area engine on synthetic tiles on all threads at once (so the shared caches are contended
+     * as in a real run)
+     *
+     * @return wall time in ns per useful pixel
+     */
+    private double timePerUsefulPixel(final HiCCUPSConfiguration conf, final int size) {
+        final int numTiles = Math.max(CALIBRATION_PIXELS / (size * size), 1);
+        final int margin = HiCCUPS.regionMargin;
+        final int[] bounds = new int[]{0, size, margin, margin, margin, size - margin};
+
+        long startTime = System.nanoTime();
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        for (int t = 0; t < numThreads; t++) {
+            final int seed = t;
+            executor.execute(() -> {
+                HiCCUPSSummedAreaEngine engine = new HiCCUPSSummedAreaEngine(conf.getWindowWidth(), size, conf.getPeakWidth(), -1, false, null);
+                float[] observed = generateTile(size, seed);
+                float[] expected = new float[2 * size];
+                for (int k = 0; k < expected.length; k++) {
+                    expected[k] = 50f / (k + 1);
+                }
+                float[] kr = new float[size];
+                Arrays.fill(kr, 1);
+                float[] thresholds = new float[HiCCUPS.w1];
+                Arrays.fill(thresholds, 10000);
+                for (int k = 0; k < numTiles; k++) {
+                    engine.process(observed, expected, kr, kr, thresholds, thresholds, thresholds, thresholds,
+                            bounds, bounds);
+                }
+            });
+        }
+        executor.shutdown();
+
+        // Wait until all threads finish
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        double usefulPixels = (double) numThreads * numTiles * (size - 2 * margin) * (size - 2 * margin);
+        return (System.nanoTime() - startTime) / usefulPixels;
+    }
+
+    private static float[] generateTile(int size, int seed) {
+        Random random = new Random(seed);
+        float[] observed = new float[size * size];
+        for (int i = 0; i < size; i++) {
+            for (int j = i; j < size; j++) {
+                observed[i * size + j] = random.nextInt(1 + 100 / (j - i + 1));
+                observed[j * size + i] = observed[i * size + j];
+            }
+        }
+        return observed;
+    }
+
+    /**
+     * @return size in bytes of the given cache level of the first CPU (as reported by Linux), or the default
+     */
+    private static long readCacheSize(int level, long defaultSize) {
+        File[] caches = new File("/sys/devices/system/cpu/cpu0/cache").listFiles();
+        if (caches == null) return defaultSize;
+        for (File cache : caches) {
+            if (!cache.getName().startsWith("index")) continue;
+            try {
+                if (Integer.parseInt(readLine(new File(cache, "level"))) != level) continue;
+                String size = readLine(new File(cache, "size"));
+                long multiplier = 1;
+                if (size.endsWith("K")) {
+                    multiplier = 1024;
+                } else if (size.endsWith("M")) {
+                    multiplier = 1024 * 1024;
+                }
+                if (multiplier > 1) size = size.substring(0, size.length() - 1);
+                return Long.parseLong(size) * multiplier;
+            } catch (IOException | NumberFormatException e) {
+                // fall through to the default
+            }
+        }
+        return defaultSize;
+    }
+
+    private static String readLine(File file) throws IOException {
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line = reader.readLine();
+            if (line == null) throw new IOException("empty " + file);
+            return line.trim();
+        }
+    }
+}
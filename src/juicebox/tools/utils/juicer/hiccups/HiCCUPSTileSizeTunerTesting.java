@@ -0,0 +1,60 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011-2021 Broad Institute, Aiden Lab, Rice University, Baylor College of Medicine
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+
+package juicebox.tools.utils.juicer.hiccups;
+
+/**
+ * Checks that the CPU cost model of HiCCUPSTileSizeTuner keeps the chosen matrix size within the sizes whose
+ * working sets fit in the L3, over a range of cache sizes and thread counts
+ */
+class HiCCUPSTileSizeTunerTesting {
+
+    private static final int[] NUM_THREADS = {1, 2, 4, 8, 16, 32, 64};
+    private static final long KB = 1024, MB = 1024 * 1024;
+    private static final long[] L2_SIZES = {256 * KB, 512 * KB, MB, 2 * MB};
+    private static final long[] L3_SIZES = {4 * MB, 8 * MB, 16 * MB, 32 * MB, 64 * MB, 256 * MB};
+
+    public static void test() {
+        HiCCUPSConfiguration conf = HiCCUPSConfiguration.getDefaultConfigFor5K();
+        int numChecked = 0;
+        for (int numThreads : NUM_THREADS) {
+            for (long l2Size : L2_SIZES) {
+                for (long l3Size : L3_SIZES) {
+                    HiCCUPSTileSizeTuner tuner = new HiCCUPSTileSizeTuner(true, numThreads, 2 * numThreads,
+                            l2Size, l3Size);
+                    // only meaningful if some candidate fits at all
+                    if (!tuner.fitsInCache(128)) continue;
+                    int size = tuner.chooseMatrixSize(conf, Integer.MAX_VALUE / 2, false);
+                    if (!tuner.fitsInCache(size)) {
+                        throw new IllegalStateException("Matrix size " + size + " does not fit in the cache: "
+                                + numThreads + " threads, L2 " + l2Size + ", L3 " + l3Size);
+                    }
+                    numChecked++;
+                }
+            }
+        }
+        System.out.println("Tile size tuner stays within the cache for " + numChecked + " configurations");
+    }
+}
@@ -28,7 +28,6 @@ import javastraw.feature2D.Feature2D;
 import javastraw.feature2D.Feature2DList;
 import javastraw.feature2D.Feature2DParser;
 import javastraw.reader.Dataset;
-import javastraw.reader.basics.Chromosome;
 import javastraw.reader.basics.ChromosomeHandler;
 import javastraw.reader.norm.NormalizationVector;
 import javastraw.reader.type.NormalizationType;
@@ -43,6 +42,10 @@ import java.io.File;
 import java.io.IOException;
 import java.util.List;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
 
 /**
  * Utility class for HiCCUPS
@@ -125,10 +128,8 @@ public class HiCCUPSUtils {
         int binV = (int) feature.getFloatAttribute(BINV);
 
         if (binBL >= 0 && binDonut >= 0 && binH >= 0 && binV >= 0 && observed >= 0) {
-            feature.addFloatAttribute(FDRBL, (fdrLogBL[binBL][observed]));
-            feature.addFloatAttribute(FDRDONUT, (fdrLogDonut[binDonut][observed]));
-            feature.addFloatAttribute(FDRH, (fdrLogH[binH][observed]));
-            feature.addFloatAttribute(FDRV, (fdrLogV[binV][observed]));
+            addFDRAttributes(feature, fdrLogBL[binBL][observed], fdrLogDonut[binDonut][observed],
+                    fdrLogH[binH][observed], fdrLogV[binV][observed]);
         } else {
             System.out.println("Error in calculateFDR binBL=" + binBL + " binDonut=" + binDonut + " binH=" + binH +
                     " binV=" + binV + " observed=" + observed);
@@ -136,32 +137,41 @@ public class HiCCUPSUtils {
 
     }
 
-    private static void removeLowMapQFeatures(Feature2DList list, final int resolution,
-                                              final Dataset ds, final ChromosomeHandler chromosomeHandler,
-                                              final NormalizationType norm) {
-
-        final Map<String, Integer> chrNameToIndex = new HashMap<>();
-        for (Chromosome chr : chromosomeHandler.getChromosomeArray()) {
-            chrNameToIndex.put(Feature2DList.getKey(chr, chr), chr.getIndex());
-        }
-        if (HiCGlobals.printVerboseComments) {
-            System.out.println("Initial: " + list.getNumTotalFeatures());
-        }
-        list.filterLists((chr, feature2DList) -> {
-            try {
-                return removeLowMapQ(resolution, chrNameToIndex.get(chr), ds, feature2DList, norm);
-            } catch (Exception e) {
-                System.err.println("Unable to remove low mapQ entries for " + chr);
-                //e.printStackTrace();
-            }
-            return new ArrayList<>();
-        });
-
+    static void addFDRAttributes(Feature2D feature, float fdrBL, float fdrDonut, float fdrH, float fdrV) {
+        feature.addFloatAttribute(FDRBL, fdrBL);
+        feature.addFloatAttribute(FDRDONUT, fdrDonut);
+        feature.addFloatAttribute(FDRH, fdrH);
+        feature.addFloatAttribute(FDRV, fdrV);
+    }
 
+    static void addCentroidAttributes(Feature2D pixel, int resolution, int radius, int centroid1, int centroid2,
+                                      int numCollapsed, float binBL, float binDonut) {
+        pixel.setEnd1((int) pixel.getStart1() + resolution);
+        pixel.setEnd2((int) pixel.getStart2() + resolution);
+        pixel.addIntAttribute(RADIUS, radius);
+        pixel.addIntAttribute(CENTROID1, centroid1);
+        pixel.addIntAttribute(CENTROID2, centroid2);
+        pixel.addIntAttribute(NUMCOLLAPSED, numCollapsed);
+        setPixelColor(pixel, binBL, binDonut);
     }
 
-    private static void coalesceFeaturesToCentroid(Feature2DList list, final int resolution, final int centroidRadius) {
-        list.filterLists((chr, feature2DList) -> coalescePixelsToCentroid(resolution, feature2DList, centroidRadius));
+    /**
+     * Low mapQ removal, centroid clustering and FDR filtering for the pixels of one chromosome
+     *
+     * @return post-processed pixels, or null if the normalization vector could not be read
+     */
+    private static EnrichedPixelTable postProcessChromosome(EnrichedPixelTable pixels, int chrIndex, final int resolution,
+                                                            final Dataset ds, final NormalizationType norm,
+                                                            final int centroidRadius) {
+        try {
+            pixels = removeLowMapQ(resolution, chrIndex, ds, pixels, norm);
+        } catch (Exception e) {
+            System.err.println("Unable to remove low mapQ entries for " + Feature2DList.getKey(chrIndex, chrIndex));
+            //e.printStackTrace();
+            return null;
+        }
+        pixels = coalescePixelsToCentroid(resolution, pixels, centroidRadius);
+        return filterOutFeaturesByFDR(pixels);
     }
 
     public static void filterOutFeaturesByEnrichment(Feature2DList list, final float maxEnrich) {
@@ -177,38 +187,23 @@ public class HiCCUPSUtils {
         return filtered;
     }
 
-    private static void filterOutFeaturesByFDR(Feature2DList list) {
-        list.filterLists((chr, feature2DList) -> fdrThreshold(feature2DList));
-    }
-
-    private static List<Feature2D> fdrThreshold(List<Feature2D> feature2DList) {
-        List<Feature2D> filtered = new ArrayList<>();
-        for (Feature2D feature : feature2DList) {
-            if (fdrThresholdsSatisfied(feature))
-                filtered.add(feature);
-        }
-        return filtered;
+    private static EnrichedPixelTable filterOutFeaturesByFDR(final EnrichedPixelTable pixels) {
+        return pixels.filter(i -> fdrThresholdsSatisfied(pixels, i));
     }
 
-    private static List<Feature2D> removeLowMapQ(int res, int chrIndex, Dataset ds, List<Feature2D> list, NormalizationType norm) throws IOException {
+    private static EnrichedPixelTable removeLowMapQ(int res, int chrIndex, Dataset ds, final EnrichedPixelTable pixels,
+                                                    NormalizationType norm) throws IOException {
 
-        List<Feature2D> features = new ArrayList<>();
         NormalizationVector normVectorContainer = ds.getNormalizationVector(chrIndex, ds.getZoomForBPResolution(res),
                 norm);
         if (normVectorContainer == null) {
             HiCFileTools.triggerNormError(norm);
+            return new EnrichedPixelTable(res);
         } else {
-            double[] normalizationVector = normVectorContainer.getData().getValues().get(0);
-            for (Feature2D feature : list) {
-                int index1 = (int) (feature.getStart1() / res);
-                int index2 = (int) (feature.getStart2() / res);
-                if (nearbyValuesClear(normalizationVector, index1) && nearbyValuesClear(normalizationVector, index2)) {
-                    features.add(feature);
-                }
-            }
+            final double[] normalizationVector = normVectorContainer.getData().getValues().get(0);
+            return pixels.filter(i -> nearbyValuesClear(normalizationVector, pixels.getPos1(i) / res)
+                    && nearbyValuesClear(normalizationVector, pixels.getPos2(i) / res));
         }
-
-        return features;
     }
 
     private static boolean nearbyValuesClear(double[] normalizationVector, int index) {
@@ -220,115 +215,128 @@ public class HiCCUPSUtils {
     }
 
     /**
+     * Pixels are taken greedily from highest observed value down; each unclustered pixel starts a cluster which
+     * picks up, in the same order, every later pixel within the (growing) cluster radius of the current centroid.
+     * The pixel grid finds the next such pixel directly instead of scanning all remaining pixels.
+     *
      * @return list of pixels coalesced to centroid of enriched region
      */
-    private static List<Feature2D> coalescePixelsToCentroid(int resolution, List<Feature2D> feature2DList,
-                                                            int originalClusterRadius) {
-        // HashSet intermediate for removing duplicates; LinkedList used so that we can pop out highest obs values
-        LinkedList<Feature2D> featureLL = new LinkedList<>(new HashSet<>(feature2DList));
-        List<Feature2D> coalesced = new ArrayList<>();
-
-        while (!featureLL.isEmpty()) {
-
-            // See Feature2D
-            Collections.sort(featureLL, (o1, o2) -> {
-                if (o1.hasAttributeKey(HiCCUPSUtils.OBSERVED)
-                        && o2.hasAttributeKey(HiCCUPSUtils.OBSERVED)) {
-                    float val = Float.parseFloat(o1.getAttribute(HiCCUPSUtils.OBSERVED))
-                            - Float.parseFloat(o2.getAttribute(HiCCUPSUtils.OBSERVED));
-                    if (val > 0) return 1;
-                    if (val < 0) return -1;
-                }
-                return o1.compareTo(o2);
-            });
-            Collections.reverse(featureLL);
+    static EnrichedPixelTable coalescePixelsToCentroid(int resolution, final EnrichedPixelTable pixels,
+                                                       int originalClusterRadius) {
+        // duplicates removed; highest observed values first, ties broken by position (as in Feature2D)
+        Integer[] order = uniquePixels(pixels);
+        Arrays.sort(order, (i1, i2) -> {
+            int comparison = Float.compare(pixels.getObserved(i2), pixels.getObserved(i1));
+            if (comparison == 0) comparison = Integer.compare(pixels.getPos1(i2), pixels.getPos1(i1));
+            if (comparison == 0) comparison = Integer.compare(pixels.getPos2(i2), pixels.getPos2(i1));
+            return comparison;
+        });
+
+        // positions by rank
+        int n = order.length;
+        int[] x = new int[n];
+        int[] y = new int[n];
+        for (int k = 0; k < n; k++) {
+            x[k] = pixels.getPos1(order[k]);
+            y[k] = pixels.getPos2(order[k]);
+        }
+        HiCCUPSPixelGrid grid = new HiCCUPSPixelGrid(x, y, originalClusterRadius);
+
+        EnrichedPixelTable coalesced = new EnrichedPixelTable(resolution);
+        boolean[] clustered = new boolean[n];
+        int[] cluster = new int[n];
 
-            Feature2D pixel = featureLL.pollFirst();
-            featureLL.remove(pixel);
-            List<Feature2D> pixelList = new ArrayList<>();
-            pixelList.add(pixel);
+        for (int h = 0; h < n; h++) {
+            if (clustered[h]) continue;
 
-            int pixelListX = (int) pixel.getStart1();
-            int pixelListY = (int) pixel.getStart2();
+            int clusterSize = 0;
+            cluster[clusterSize++] = h;
+            clustered[h] = true;
+
+            double totalX = x[h], totalY = y[h];
+            int pixelListX = x[h];
+            int pixelListY = y[h];
             double r = 0;
             double pixelClusterRadius = originalClusterRadius;
-    
-            for (Feature2D px : featureLL) {
-                // TODO should likely reduce radius or at least start with default?
-                //System.out.println("Radius " + HiCCUPS.pixelClusterRadius);
-                if (hypotenuse(pixelListX - px.getStart1(), pixelListY - px.getStart2()) <= pixelClusterRadius) {
-                    pixelList.add(px);
-                    pixelListX = mean(pixelList, 1);
-                    pixelListY = mean(pixelList, 2);
-
-                    List<Double> distances = new ArrayList<>();
-                    for (Feature2D px2 : pixelList) {
-                        double dist = hypotenuse(pixelListX - px2.getStart1(), pixelListY - px2.getStart2());
-                        if (Double.isNaN(dist) || dist < 0) {
-                            System.err.println("Invalid distance while merging centroid");
-                            System.exit(29);
-                        }
-                        distances.add(dist);
+
+            // TODO should likely reduce radius or at least start with default?
+            int k = grid.nextWithinRadius(pixelListX, pixelListY, pixelClusterRadius, h, clustered);
+            while (k >= 0) {
+                cluster[clusterSize++] = k;
+                clustered[k] = true;
+                totalX += x[k];
+                totalY += y[k];
+                pixelListX = (int) (totalX / clusterSize);
+                pixelListY = (int) (totalY / clusterSize);
+
+                double maxDistance = 0;
+                for (int m = 0; m < clusterSize; m++) {
+                    double dist = hypotenuse(pixelListX - x[cluster[m]], pixelListY - y[cluster[m]]);
+                    if (Double.isNaN(dist) || dist < 0) {
+                        System.err.println("Invalid distance while merging centroid");
+                        System.exit(29);
                     }
-                    //System.out.println("Radii "+distances);
-                    r = Math.round(Collections.max(distances));
-            
-                    pixelClusterRadius = originalClusterRadius + r;
+                    maxDistance = Math.max(maxDistance, dist);
                 }
+                r = Math.round(maxDistance);
+
+                pixelClusterRadius = originalClusterRadius + r;
+                k = grid.nextWithinRadius(pixelListX, pixelListY, pixelClusterRadius, k, clustered);
             }
-    
-            pixel.setEnd1((int) pixel.getStart1() + resolution);
-            pixel.setEnd2((int) pixel.getStart2() + resolution);
-            pixel.addIntAttribute(RADIUS, (int) Math.round(r));
-            pixel.addIntAttribute(CENTROID1, (pixelListX + resolution / 2));
-            pixel.addIntAttribute(CENTROID2, (pixelListY + resolution / 2));
-            pixel.addIntAttribute(NUMCOLLAPSED, (pixelList.size()));
-            setPixelColor(pixel);
-            coalesced.add(pixel);
-    
-            featureLL.removeAll(pixelList);
+
+            coalesced.addCentroid(pixels, order[h], (int) Math.round(r), pixelListX + resolution / 2,
+                    pixelListY + resolution / 2, clusterSize);
         }
 
         return coalesced;
     }
 
-    private static void setPixelColor(Feature2D pixel) {
+    /**
+     * @return indices of the pixels, keeping only the first of any with the same position
+     */
+    private static Integer[] uniquePixels(EnrichedPixelTable pixels) {
+        Set<Long> positions = new HashSet<>();
+        List<Integer> unique = new ArrayList<>();
+        for (int i = 0; i < pixels.size(); i++) {
+            if (positions.add((((long) pixels.getPos1(i)) << 32) | (pixels.getPos2(i) & 0xffffffffL))) {
+                unique.add(i);
+            }
+        }
+        return unique.toArray(new Integer[0]);
+    }
+
+    private static void setPixelColor(Feature2D pixel, float binBL, float binDonut) {
         Color c = HiCCUPS.defaultPeakColor;
         if (HiCCUPS.shouldColorBeScaledByFDR) {
-            double fdr = -Math.floor(Math.log10(
-                    Math.max(pixel.getFloatAttribute(BINBL), pixel.getFloatAttribute(BINDONUT))));
+            double fdr = -Math.floor(Math.log10(Math.max(binBL, binDonut)));
             fdr = Math.max(Math.min(fdr, 10), 0) / 10;
             c = new Color((int) (fdr * c.getRed()), (int) (fdr * c.getGreen()), (int) (fdr * c.getBlue()));
         }
         pixel.setColor(c);
     }
 
-    private static boolean fdrThresholdsSatisfied(Feature2D pixel) {
+    private static boolean fdrThresholdsSatisfied(EnrichedPixelTable pixels, int i) {
         double f = HiCCUPS.fdrsum;
         double t1 = HiCCUPS.oeThreshold1;
         double t2 = HiCCUPS.oeThreshold2;
         double t3 = HiCCUPS.oeThreshold3;
 
-        int observed = Math.round(pixel.getFloatAttribute(OBSERVED));
-        int numCollapsed = Math.round(pixel.getFloatAttribute(NUMCOLLAPSED));
-
-        float expectedBL = pixel.getFloatAttribute(EXPECTEDBL);
-        float expectedDonut = pixel.getFloatAttribute(EXPECTEDDONUT);
-        float expectedH = pixel.getFloatAttribute(EXPECTEDH);
-        float expectedV = pixel.getFloatAttribute(EXPECTEDV);
+        int observed = Math.round(pixels.getObserved(i));
+        int numCollapsed = pixels.getNumCollapsed(i);
 
-        float fdrBL = pixel.getFloatAttribute(FDRBL);
-        float fdrDonut = pixel.getFloatAttribute(FDRDONUT);
-        float fdrH = pixel.getFloatAttribute(FDRH);
-        float fdrV = pixel.getFloatAttribute(FDRV);
+        float expectedBL = pixels.getExpectedBL(i);
+        float expectedDonut = pixels.getExpectedDonut(i);
+        float expectedH = pixels.getExpectedH(i);
+        float expectedV = pixels.getExpectedV(i);
 
         return observed > (t2 * expectedBL)
                 && observed > (t2 * expectedDonut)
                 && observed > (t1 * expectedH)
                 && observed > (t1 * expectedV)
                 && (observed > (t3 * expectedBL) || observed > (t3 * expectedDonut))
-                && (numCollapsed > 1 || (fdrBL + fdrDonut + fdrH + fdrV) <= f);
+                && (numCollapsed > 1 || pixels.getFdrSum(i) <= f);
     }
+
     private static boolean enrichmentThresholdSatisfied(Feature2D pixel, final float maxEnrich) {
 
 
@@ -347,18 +355,6 @@ public class HiCCUPSUtils {
 
 
 
-    private static int mean(List<Feature2D> pixelList, int i) {
-        int n = pixelList.size();
-        double total = 0;
-        for (Feature2D px : pixelList) {
-            if (i == 1)
-                total += px.getStart1();
-            else if (i == 2)
-                total += px.getStart2();
-        }
-        return (int) (total / n);
-    }
-
     public static double hypotenuse(double x, double y) {
         return Math.sqrt(x * x + y * y);
     }
@@ -512,20 +508,90 @@ public class HiCCUPSUtils {
         return null;
     }
 
-    public static Feature2DList postProcess(Map<Integer, Feature2DList> looplists, Dataset ds,
-                                            ChromosomeHandler chromosomeHandler, List<HiCCUPSConfiguration> configurations,
-                                            NormalizationType norm, File outputDirectory, boolean isRequested, File outputFile) {
+    /**
+     * @param spilledLooplists resolutions whose pixels were spilled to disk instead of being kept in looplists
+     *                         (may be null); each chromosome is only read back by the task processing it, and only
+     *                         one spilled chromosome is held at a time, so their peak memory is that of the largest
+     *                         chromosome rather than one chromosome per thread
+     */
+    public static Feature2DList postProcess(Map<Integer, EnrichedPixelTable> looplists,
+                                            Map<Integer, EnrichedPixelSpill> spilledLooplists, Dataset ds,
+                                            List<HiCCUPSConfiguration> configurations, NormalizationType norm,
+                                            File outputDirectory, boolean isRequested, File outputFile,
+                                            ExecutorService executor) {
+
+        // one task per (resolution, chromosome); results are merged back in chromosome order
+        final Map<Integer, EnrichedPixelTable[]> processedChromosomes = new HashMap<>();
+        List<Future<?>> tasks = new ArrayList<>();
+        final Semaphore spilledChromosomeSlot = new Semaphore(1);
         for (HiCCUPSConfiguration conf : configurations) {
+            final int res = conf.getResolution();
+            final int centroidRadius = conf.getClusterRadius();
+            final EnrichedPixelSpill spill = spilledLooplists != null ? spilledLooplists.get(res) : null;
+            if (spill != null) {
+                Set<Integer> chromosomeIndices = spill.getChromosomeIndices();
+                final EnrichedPixelTable[] processed = new EnrichedPixelTable[chromosomeIndices.size()];
+                processedChromosomes.put(res, processed);
+                int i = 0;
+                for (final int chrIndex : chromosomeIndices) {
+                    final int index = i++;
+                    tasks.add(executor.submit(() -> {
+                        spilledChromosomeSlot.acquireUninterruptibly();
+                        try {
+                            processed[index] = postProcessChromosome(spill.read(chrIndex), chrIndex, res, ds,
+                                    norm, centroidRadius);
+                        } catch (IOException e) {
+                            System.err.println("Unable to read spilled pixels for " +
+                                    Feature2DList.getKey(chrIndex, chrIndex) + " " + e.getLocalizedMessage());
+                        } finally {
+                            spilledChromosomeSlot.release();
+                        }
+                    }));
+                }
+                continue;
+            }
+
+            EnrichedPixelTable pixels = looplists.get(res);
+            if (pixels == null) continue;
+            if (HiCGlobals.printVerboseComments) {
+                System.out.println("Initial: " + pixels.size());
+            }
 
+            Map<Integer, EnrichedPixelTable> chromosomePixels = pixels.splitByChromosome();
+            final EnrichedPixelTable[] processed = new EnrichedPixelTable[chromosomePixels.size()];
+            processedChromosomes.put(res, processed);
+            int i = 0;
+            for (Map.Entry<Integer, EnrichedPixelTable> entry : chromosomePixels.entrySet()) {
+                final int index = i++;
+                final int chrIndex = entry.getKey();
+                final EnrichedPixelTable chrPixels = entry.getValue();
+                tasks.add(executor.submit(() -> processed[index] = postProcessChromosome(chrPixels, chrIndex, res, ds,
+                        norm, centroidRadius)));
+            }
+        }
+
+        // Wait until all tasks finish
+        for (Future<?> task : tasks) {
+            try {
+                task.get();
+            } catch (InterruptedException | ExecutionException e) {
+                System.err.println("HiCCUPS post processing failed " + e.getLocalizedMessage());
+                System.exit(60);
+            }
+        }
+
+        Map<Integer, Feature2DList> postProcessedLists = new HashMap<>();
+        for (HiCCUPSConfiguration conf : configurations) {
             int res = conf.getResolution();
-            removeLowMapQFeatures(looplists.get(res), res, ds, chromosomeHandler, norm);
-            coalesceFeaturesToCentroid(looplists.get(res), res, conf.getClusterRadius());
-            filterOutFeaturesByFDR(looplists.get(res));
-            looplists.get(res).exportFeatureList(new File(outputDirectory, getPostprocessedLoopsFileName(res, isRequested)),
+            EnrichedPixelTable[] processed = processedChromosomes.get(res);
+            if (processed == null) continue;
+            Feature2DList postProcessedList = EnrichedPixelTable.merge(res, Arrays.asList(processed)).toFeature2DList();
+            postProcessedList.exportFeatureList(new File(outputDirectory, getPostprocessedLoopsFileName(res, isRequested)),
                     true, Feature2DList.ListFormat.FINAL);
+            postProcessedLists.put(res, postProcessedList);
         }
 
-        Feature2DList mergedList = mergeAllResolutions(looplists);
+        Feature2DList mergedList = mergeAllResolutions(postProcessedLists);
         mergedList.exportFeatureList(outputFile, true, Feature2DList.ListFormat.FINAL);
         return mergedList;
     }